@@ -0,0 +1,64 @@
+package de.ericdoerheit.befiot.benchmarks;
+
+import de.ericdoerheit.befiot.core.Encapsulation;
+import de.ericdoerheit.befiot.core.EncryptionKeyAgent;
+import de.ericdoerheit.befiot.core.KeyAgentBuilder;
+import de.ericdoerheit.befiot.core.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link EncryptionKeyAgent#nextBatch(List)} with calling next, getHeader and getKey for one receiver set
+ * after another.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchEncapsulationBenchmark {
+
+    @Param({"100"})
+    public int n;
+
+    @Param({"10"})
+    public int receiverSetSize;
+
+    @Param({"1", "16", "256"})
+    public int numberOfReceiverSets;
+
+    private EncryptionKeyAgent encryptionKeyAgent;
+    private List<int[]> receiverSets;
+
+    @Setup
+    public void setup() {
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(0, Long.MAX_VALUE, Util.getDefaultPairing(), n);
+        encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+
+        Random random = new Random(42);
+        receiverSets = new ArrayList<int[]>(numberOfReceiverSets);
+        for (int i = 0; i < numberOfReceiverSets; i++) {
+            receiverSets.add(Benchmarks.randomReceiverSet(random, n, receiverSetSize));
+        }
+    }
+
+    @Benchmark
+    public void loop(Blackhole blackhole) {
+        for (int[] ids : receiverSets) {
+            encryptionKeyAgent.next(ids);
+            blackhole.consume(encryptionKeyAgent.getHeader());
+            blackhole.consume(encryptionKeyAgent.getKey());
+        }
+    }
+
+    @Benchmark
+    public List<Encapsulation> batch() {
+        return encryptionKeyAgent.nextBatch(receiverSets);
+    }
+}
@@ -0,0 +1,55 @@
+package de.ericdoerheit.befiot.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+public class Benchmarks {
+
+    /**
+     * Returns a sorted set of distinct random ids between 1 and n.
+     * @param random
+     * @param n
+     * @param size
+     * @return
+     */
+    public static int[] randomReceiverSet(Random random, int n, int size) {
+        size = Math.min(size, n);
+
+        // Partial Fisher-Yates shuffle of 1, ..., n
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(n - i);
+            int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+
+        int[] receiverSet = Arrays.copyOf(ids, size);
+        Arrays.sort(receiverSet);
+        return receiverSet;
+    }
+
+    /**
+     * Returns the sorted distinct ids of the given array.
+     * @param ids
+     * @return
+     */
+    public static int[] sortedDistinct(int[] ids) {
+        int[] sortedIds = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sortedIds);
+
+        int length = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            if (i == 0 || sortedIds[i] != sortedIds[i - 1]) {
+                sortedIds[length++] = sortedIds[i];
+            }
+        }
+        return Arrays.copyOf(sortedIds, length);
+    }
+}
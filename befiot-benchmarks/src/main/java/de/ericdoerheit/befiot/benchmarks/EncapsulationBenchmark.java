@@ -0,0 +1,88 @@
+package de.ericdoerheit.befiot.benchmarks;
+
+import de.ericdoerheit.befiot.core.DecryptionKeyAgent;
+import de.ericdoerheit.befiot.core.EncryptionHeader;
+import de.ericdoerheit.befiot.core.EncryptionKeyAgent;
+import de.ericdoerheit.befiot.core.KeyAgentBuilder;
+import de.ericdoerheit.befiot.core.Util;
+import it.unisa.dia.gas.jpbc.Element;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and decryption of a session key for receiver sets of different sizes. The benchmark cycles through a fixed
+ * number of receiver sets. With productCacheSize = 0 the product caches of the key agents are disabled, so every
+ * invocation computes the full product. With a cache the fixed receiver sets are served by exact or nearest delta hits,
+ * and if receiverSetSize >= n all receiver sets are identical, so these results only show the cached case. The
+ * decryption is measured with the product of pairings and with the pairing preprocessing of g_id
+ * (productPairing = false).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncapsulationBenchmark {
+
+    private static final int RECEIVER_SETS = 64;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int n;
+
+    @Param({"1", "10", "100"})
+    public int receiverSetSize;
+
+    // Only affects getKey
+    @Param({"true", "false"})
+    public boolean productPairing;
+
+    // 0 disables the product caches of both key agents
+    @Param({"0", "16"})
+    public int productCacheSize;
+
+    private EncryptionKeyAgent encryptionKeyAgent;
+    private DecryptionKeyAgent decryptionKeyAgent;
+
+    private int[][] receiverSets;
+    private EncryptionHeader[] headers;
+    private int next;
+
+    @Setup
+    public void setup() {
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(0, Long.MAX_VALUE, Util.getDefaultPairing(), n);
+        encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(1);
+        decryptionKeyAgent.setProductPairing(productPairing);
+        encryptionKeyAgent.setProductCacheSize(productCacheSize);
+        decryptionKeyAgent.setProductCacheSize(productCacheSize);
+
+        // Every receiver set contains the decryption key agent 1
+        Random random = new Random(42);
+        receiverSets = new int[RECEIVER_SETS][];
+        headers = new EncryptionHeader[RECEIVER_SETS];
+        for (int i = 0; i < RECEIVER_SETS; i++) {
+            int[] ids = Benchmarks.randomReceiverSet(random, n, receiverSetSize);
+            ids[0] = 1;
+            receiverSets[i] = Benchmarks.sortedDistinct(ids);
+
+            encryptionKeyAgent.next(receiverSets[i]);
+            headers[i] = encryptionKeyAgent.getHeader();
+        }
+    }
+
+    @Benchmark
+    public EncryptionHeader next() {
+        next = (next + 1) % RECEIVER_SETS;
+        encryptionKeyAgent.next(receiverSets[next]);
+        return encryptionKeyAgent.getHeader();
+    }
+
+    @Benchmark
+    public Element getKey() {
+        next = (next + 1) % RECEIVER_SETS;
+        return decryptionKeyAgent.getKey(headers[next], receiverSets[next]);
+    }
+}
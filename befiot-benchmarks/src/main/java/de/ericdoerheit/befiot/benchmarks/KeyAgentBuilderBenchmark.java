@@ -0,0 +1,66 @@
+package de.ericdoerheit.befiot.benchmarks;
+
+import de.ericdoerheit.befiot.core.DecryptionKeyAgent;
+import de.ericdoerheit.befiot.core.KeyAgentBuilder;
+import de.ericdoerheit.befiot.core.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Setup of a broadcast encryption system: generation of the public key and of Decryption Key Agents.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class KeyAgentBuilderBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int n;
+
+    private KeyAgentBuilder keyAgentBuilder;
+    private int id;
+
+    @Setup
+    public void setup() {
+        keyAgentBuilder = new KeyAgentBuilder(0, Long.MAX_VALUE, Util.getDefaultPairing(), n);
+        id = 1;
+    }
+
+    /**
+     * Public key generation takes seconds for large n, so every invocation is measured on its own.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public KeyAgentBuilder construction() {
+        return new KeyAgentBuilder(0, Long.MAX_VALUE, Util.getDefaultPairing(), n);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public DecryptionKeyAgent getDecryptionKeyAgent() {
+        id = id % n + 1;
+        return keyAgentBuilder.getDecryptionKeyAgent(id);
+    }
+
+    /**
+     * All Decryption Key Agents of the system, computed in parallel.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public int getDecryptionKeyAgents() {
+        int idSum = 0;
+        Iterator<DecryptionKeyAgent> decryptionKeyAgents = keyAgentBuilder.getDecryptionKeyAgents(1, n);
+        while (decryptionKeyAgents.hasNext()) {
+            idSum += decryptionKeyAgents.next().getId();
+        }
+        return idSum;
+    }
+}
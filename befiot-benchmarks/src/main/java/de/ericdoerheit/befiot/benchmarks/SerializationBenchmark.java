@@ -0,0 +1,46 @@
+package de.ericdoerheit.befiot.benchmarks;
+
+import de.ericdoerheit.befiot.core.DecryptionKeyAgent;
+import de.ericdoerheit.befiot.core.Deserializer;
+import de.ericdoerheit.befiot.core.EncryptionKeyAgent;
+import de.ericdoerheit.befiot.core.KeyAgentBuilder;
+import de.ericdoerheit.befiot.core.Serializer;
+import de.ericdoerheit.befiot.core.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON round-trips of the key agents whose size grows with the public key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int n;
+
+    private EncryptionKeyAgent encryptionKeyAgent;
+    private DecryptionKeyAgent decryptionKeyAgent;
+
+    @Setup
+    public void setup() {
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(0, Long.MAX_VALUE, Util.getDefaultPairing(), n);
+        encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(1);
+    }
+
+    @Benchmark
+    public EncryptionKeyAgent encryptionKeyAgentRoundTrip() {
+        return Deserializer.jsonStringToEncryptionKeyAgent(Serializer.encryptionKeyAgentToJsonString(encryptionKeyAgent));
+    }
+
+    @Benchmark
+    public DecryptionKeyAgent decryptionKeyAgentRoundTrip() {
+        return Deserializer.jsonStringToDecryptionKeyAgent(Serializer.decryptionKeyAgentToJsonString(decryptionKeyAgent));
+    }
+}
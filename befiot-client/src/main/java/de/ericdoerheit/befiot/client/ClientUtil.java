@@ -1,6 +1,7 @@
 package de.ericdoerheit.befiot.client;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import de.ericdoerheit.befiot.core.ReceiverSet;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.slf4j.Logger;
@@ -15,6 +16,7 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Created by ericdorheit on 06/02/16.
@@ -60,6 +62,20 @@ public class ClientUtil {
         return sslContext;
     }
 
+    /**
+     * Returns the session id of the given receivers, a 64 bit hash which only depends on the tenant ids and the ids
+     * of the receivers, so that all things compute the same session id for the same receivers.
+     * @param receivers Receivers per tenant
+     * @return
+     */
+    public static long sessionId(Map<String, ReceiverSet> receivers) {
+        long hash = 0;
+        for (Map.Entry<String, ReceiverSet> entry : new TreeMap<String, ReceiverSet>(receivers).entrySet()) {
+            hash = entry.getValue().hash64(ReceiverSet.hash64(hash, entry.getKey()));
+        }
+        return hash;
+    }
+
     public static boolean isEncryptionKeyAgentFile(File file) {
         return file.getName() != null && file.getName().matches(ENCRYPTION_KEY_AGENT_FILE_NAME_REGEX);
     }
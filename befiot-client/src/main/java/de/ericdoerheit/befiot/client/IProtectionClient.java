@@ -1,5 +1,7 @@
 package de.ericdoerheit.befiot.client;
 
+import de.ericdoerheit.befiot.core.ReceiverSet;
+
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,10 +15,10 @@ public interface IProtectionClient {
      *
      * @param message Message that will be protected
      * @param notValidAfter Time until message is valid (as unix timestamp milliseconds)
-     * @param receivers List of receivers per tenant Map(tenant, receiverIds)
+     * @param receivers Receivers per tenant Map(tenant, receiverIds)
      * @return protected message
      */
-    public Message protectMessage(byte[] message, long notValidAfter, Map<String, Set<String>> receivers, boolean forceNewSessionKey);
+    public Message protectMessage(byte[] message, long notValidAfter, Map<String, ReceiverSet> receivers, boolean forceNewSessionKey);
 
     /**
      *
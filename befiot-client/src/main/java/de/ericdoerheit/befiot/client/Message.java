@@ -10,7 +10,8 @@ import java.util.Map;
  */
 public class Message {
     /* --- Mandatory Attributes --- */
-    private int sessionId;
+    // Canonical hash of the receiver sets (see ClientUtil.sessionId)
+    private long sessionId;
     private String tenantId;
     private String thingId;
     private long timestamp;
@@ -65,7 +66,19 @@ public class Message {
         signatureString += Arrays.toString(this.getThingCertificate());
 
         for (Map.Entry<String, EncryptionHeaderData> entry : this.getBroadcastEncryptionHeaders().entrySet()) {
-            signatureString += entry.getKey() + Arrays.toString(entry.getValue().getC0()) + Arrays.toString(entry.getValue().getC1());
+            signatureString += entry.getKey() + entry.getValue().getPairingIdentifier() + entry.getValue().getFormatVersion();
+            signatureString += Arrays.toString(entry.getValue().getC0()) + Arrays.toString(entry.getValue().getC1());
+
+            if (entry.getValue().getC1s() != null) {
+                for (byte[] c1 : entry.getValue().getC1s()) {
+                    signatureString += Arrays.toString(c1);
+                }
+            }
+
+            // Receivers of headers in range mode
+            if (entry.getValue().getRanges() != null) {
+                signatureString += Arrays.toString(entry.getValue().getRanges());
+            }
         }
 
         for (Map.Entry<String, byte[]> entry : this.getBroadcastEncryptedSessionKeys().entrySet()) {
@@ -81,11 +94,11 @@ public class Message {
         return signatureString;
     }
 
-    public int getSessionId() {
+    public long getSessionId() {
         return sessionId;
     }
 
-    public void setSessionId(int sessionId) {
+    public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
     }
 
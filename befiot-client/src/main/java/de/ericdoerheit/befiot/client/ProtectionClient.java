@@ -2,8 +2,10 @@ package de.ericdoerheit.befiot.client;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import de.ericdoerheit.befiot.core.*;
+import de.ericdoerheit.befiot.core.data.DecryptionKeyAgentData;
 import de.ericdoerheit.befiot.core.data.EncryptionHeaderData;
 import de.ericdoerheit.befiot.core.data.EncryptionKeyAgentData;
+import it.unisa.dia.gas.jpbc.Element;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -12,6 +14,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
 import java.io.*;
+import java.math.BigInteger;
 import java.security.*;
 import java.security.cert.*;
 import java.security.cert.Certificate;
@@ -50,12 +53,21 @@ public class ProtectionClient implements IProtectionClient {
 
     private String dataLocation;
 
+    // Number of precomputed encapsulations per EKA, 0 disables the randomness pools
+    private int randomnessPoolDepth;
+
+    // Send the receivers as ranges in the headers instead of the receiver ids (for receivers with consecutive ids)
+    private boolean rangeMode;
+
+    // Directory of the memory-mapped public key files (shared by the things of a gateway), null keeps public keys on the heap
+    private String publicKeyLocation;
+
     // Contains EKAs of all tenants  (<tenantId, DKA>)
     private Map<String, EncryptionKeyAgent> encryptionKeyAgentMap;
     private DecryptionKeyAgent decryptionKeyAgent;
 
-    private Map<Integer, SessionKey> encryptionSessionKeys;
-    private Map<Integer, SessionKey> decryptionSessionKeys;
+    private Map<Long, SessionKey> encryptionSessionKeys;
+    private Map<Long, SessionKey> decryptionSessionKeys;
 
 
     private OkHttpClient httpClient;
@@ -67,8 +79,8 @@ public class ProtectionClient implements IProtectionClient {
 
     public ProtectionClient(Properties properties) {
         encryptionKeyAgentMap = new HashMap<String, EncryptionKeyAgent>();
-        encryptionSessionKeys = new HashMap<Integer, SessionKey>();
-        decryptionSessionKeys = new HashMap<Integer, SessionKey>();
+        encryptionSessionKeys = new HashMap<Long, SessionKey>();
+        decryptionSessionKeys = new HashMap<Long, SessionKey>();
 
         cryptographyUtil = new CryptographyUtil();
 
@@ -89,6 +101,9 @@ public class ProtectionClient implements IProtectionClient {
         trustStorePassword = properties.getProperty("trust-store-password");
 
         dataLocation = properties.getProperty("data-location");
+        randomnessPoolDepth = Integer.valueOf(properties.getProperty("randomness-pool-depth", "0"));
+        rangeMode = Boolean.valueOf(properties.getProperty("range-mode", "false"));
+        publicKeyLocation = properties.getProperty("public-key-location");
 
         Object[] mandatoryProperties = new Object[]{tenantServerHost, tenantServerPort, keyStoreLocation, keyStorePassword,
                 keyPassword, trustStoreLocation, trustStorePassword};
@@ -194,8 +209,8 @@ public class ProtectionClient implements IProtectionClient {
         }
 
         if(decryptionKeyAgentDataFile != null) {
-            DecryptionKeyAgent existingDecryptionKeyAgent = Deserializer
-                    .jsonStringToDecryptionKeyAgent(loadFileContentIntoString(decryptionKeyAgentDataFile));
+            DecryptionKeyAgent existingDecryptionKeyAgent = jsonStringToDecryptionKeyAgent(
+                    loadFileContentIntoString(decryptionKeyAgentDataFile));
 
             if (existingDecryptionKeyAgent.validate(System.currentTimeMillis())
                     && existingDecryptionKeyAgent.getId() == thingId) {
@@ -222,7 +237,7 @@ public class ProtectionClient implements IProtectionClient {
                     log.debug("Response from request of GET {} Status code: {}", url, response.code());
 
                     // TODO: 08/02/16 Validate response
-                    decryptionKeyAgent = Deserializer.jsonStringToDecryptionKeyAgent(response.body().string());
+                    decryptionKeyAgent = jsonStringToDecryptionKeyAgent(response.body().string());
                     saveStringToFile(dataLocation+File.separator+"decryption-key-agent.json",
                             Serializer.decryptionKeyAgentToJsonString(decryptionKeyAgent));
 
@@ -239,10 +254,11 @@ public class ProtectionClient implements IProtectionClient {
         for (File file : encryptionKeyAgentDataFiles) {
             String tenantId = getTenantIdFromEkaFileName(file.getName());
             String jsonString = loadFileContentIntoString(file);
-            EncryptionKeyAgent encryptionKeyAgent = Deserializer.jsonStringToEncryptionKeyAgent(jsonString);
+            EncryptionKeyAgent encryptionKeyAgent = encryptionKeyAgentFromData(
+                    Deserializer.jsonStringToEncryptionKeyAgentData(jsonString));
 
             if (encryptionKeyAgent.validate(System.currentTimeMillis())) {
-                encryptionKeyAgentMap.put(tenantId, encryptionKeyAgent);
+                putEncryptionKeyAgent(tenantId, encryptionKeyAgent);
             } else {
                 file.delete();
             }
@@ -304,6 +320,7 @@ public class ProtectionClient implements IProtectionClient {
                         && existingEncryptionKeyAgent.validate(System.currentTimeMillis()))) {
 
                     if (existingEncryptionKeyAgent != null) {
+                        existingEncryptionKeyAgent.disableRandomnessPool();
                         encryptionKeyAgentMap.remove(existingEncryptionKeyAgent);
                     }
 
@@ -321,11 +338,10 @@ public class ProtectionClient implements IProtectionClient {
                                     .jsonStringToEncryptionKeyAgentData(body);
 
                             if(validateEncryptionKeyAgentDataSignature(encryptionKeyAgentData)) {
-                                EncryptionKeyAgent encryptionKeyAgent = Deserializer
-                                        .encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData);
+                                EncryptionKeyAgent encryptionKeyAgent = encryptionKeyAgentFromData(encryptionKeyAgentData);
 
                                 if (encryptionKeyAgent.validate(System.currentTimeMillis())) {
-                                    encryptionKeyAgentMap.put(tenantId, encryptionKeyAgent);
+                                    putEncryptionKeyAgent(tenantId, encryptionKeyAgent);
                                     saveStringToFile(dataLocation + File.separator
                                             + getEkaFileNameFromTenantId(tenantId), body);
                                     outdatedEncryptionKeyAgents--;
@@ -345,6 +361,101 @@ public class ProtectionClient implements IProtectionClient {
         return 0;
     }
 
+    /**
+     * Adds the EKA of the tenant and starts precomputing encapsulations if a randomness pool depth is configured.
+     */
+    private void putEncryptionKeyAgent(String tenantId, EncryptionKeyAgent encryptionKeyAgent) {
+        encryptionKeyAgent.setRangeMode(rangeMode);
+        if (randomnessPoolDepth > 0) {
+            encryptionKeyAgent.enableRandomnessPool(randomnessPoolDepth);
+        }
+        encryptionKeyAgentMap.put(tenantId, encryptionKeyAgent);
+    }
+
+    /**
+     * Deserializes the DKA, its public key is memory-mapped if a public key location is configured.
+     */
+    private DecryptionKeyAgent jsonStringToDecryptionKeyAgent(String jsonString) {
+        DecryptionKeyAgentData decryptionKeyAgentData = Deserializer.jsonStringToDecryptionKeyAgentData(jsonString);
+
+        if (publicKeyLocation != null) {
+            try {
+                PublicKeyFile publicKeyFile = publicKeyFile(decryptionKeyAgentData.getPublicKey(),
+                        decryptionKeyAgentData.getPairingIdentifier(), decryptionKeyAgentData.getFormatVersion());
+                return Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData, publicKeyFile);
+            } catch (IOException e) {
+                log.error("Public key of the DKA could not be mapped. {}", e.getMessage());
+            }
+        }
+
+        return Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData);
+    }
+
+    /**
+     * Creates the EKA, its public key is memory-mapped if a public key location is configured.
+     */
+    private EncryptionKeyAgent encryptionKeyAgentFromData(EncryptionKeyAgentData encryptionKeyAgentData) {
+        if (publicKeyLocation != null) {
+            try {
+                PublicKeyFile publicKeyFile = publicKeyFile(encryptionKeyAgentData.getPublicKey(),
+                        encryptionKeyAgentData.getPairingIdentifier(), encryptionKeyAgentData.getFormatVersion());
+                return Deserializer.encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData, publicKeyFile);
+            } catch (IOException e) {
+                log.error("Public key of the EKA could not be mapped. {}", e.getMessage());
+            }
+        }
+
+        return Deserializer.encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData);
+    }
+
+    /**
+     * Returns the mapped file of the given public key. The file is named by the SHA-256 hash of the content, so that
+     * the DKA and the EKAs with the same public key (also of other things using the same location) share one file and
+     * a changed public key never overwrites a mapped file. An existing file which does not contain the public key
+     * (e.g. a truncated file) is replaced.
+     */
+    private PublicKeyFile publicKeyFile(List<byte[]> publicKey, int pairingIdentifier, int formatVersion) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Public key file name could not be computed.", e);
+        }
+
+        // Hash of the encoding and the serialized elements
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }, messageDigest));
+        out.writeInt(pairingIdentifier);
+        out.writeInt(formatVersion);
+        for (byte[] bytes : publicKey) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.close();
+
+        File file = new File(publicKeyLocation, String.format("public-key_%064x.bin", new BigInteger(1, messageDigest.digest())));
+        if (file.exists()) {
+            try {
+                PublicKeyFile publicKeyFile = PublicKeyFile.open(file);
+                if (publicKeyFile.matches(publicKey, pairingIdentifier, formatVersion)) {
+                    return publicKeyFile;
+                }
+                log.warn("Public key file {} does not contain the public key and is replaced.", file);
+            } catch (IOException e) {
+                log.warn("Public key file {} could not be mapped and is replaced. {}", file, e.getMessage());
+            }
+        } else {
+            new File(publicKeyLocation).mkdirs();
+        }
+
+        PublicKeyFile.writeElementBytes(file, publicKey, pairingIdentifier, formatVersion);
+        log.debug("Wrote public key file {}.", file);
+        return PublicKeyFile.open(file);
+    }
+
     private boolean validateEncryptionKeyAgentDataSignature(EncryptionKeyAgentData encryptionKeyAgentData) {
         // TODO
         return true;
@@ -417,7 +528,7 @@ public class ProtectionClient implements IProtectionClient {
     }
 
     @Override
-    public Message protectMessage(byte[] message, long notValidAfter, Map<String, Set<String>> receivers, boolean forceNewSessionKey) {
+    public Message protectMessage(byte[] message, long notValidAfter, Map<String, ReceiverSet> receivers, boolean forceNewSessionKey) {
         logEvent("{\"event\": \"protect_message\", \"data\":\""+getFullThingId()+"\"}");
         if(receivers.isEmpty()) {
             log.debug("Receiver set is empty");
@@ -426,12 +537,12 @@ public class ProtectionClient implements IProtectionClient {
 
         int encryptionDataSize = 0;
         int numberReceivers = 0;
-        int numberMaxReceivers = decryptionKeyAgent.getPublicKey().size() / 2 - 1;
+        int numberMaxReceivers = decryptionKeyAgent.getMaximumNumberOfDecryptionKeyAgents();
         int tenants = 0;
 
         long timestamp = System.currentTimeMillis();
 
-        int hash = receivers.hashCode();
+        long hash = sessionId(receivers);
 
         SessionKey sessionKey = encryptionSessionKeys.get(hash);
 
@@ -474,30 +585,25 @@ public class ProtectionClient implements IProtectionClient {
             Map<String, int[]> broadcastEncryptionIds = new HashMap<String, int[]>();
 
             log.debug("Receivers: {}", receivers);
-            for (Map.Entry<String, Set<String>> entry : receivers.entrySet()) {
+            for (Map.Entry<String, ReceiverSet> entry : receivers.entrySet()) {
                 // For simplicity each thingId is an integer that is equal to the BE system id
 
                 String tenantId = entry.getKey();
-                Set<String> receiverIds = entry.getValue();
+                ReceiverSet receiverSet = entry.getValue();
 
                 EncryptionKeyAgent encryptionKeyAgent = encryptionKeyAgentMap.get(tenantId);
 
-                int[] ids = new int[receiverIds.size()];
-
-                int i = 0;
-                for (String id : receiverIds) {
-                    ids[i] = Integer.valueOf(id);
-                    i++;
-                }
-
                 tenants++;
-                numberReceivers += ids.length;
+                numberReceivers += receiverSet.size();
                 encryptionDataSize += Serializer.encryptionKeyAgentToJsonString(encryptionKeyAgent).getBytes().length;
 
                 if (encryptionKeyAgent != null) {
-                    broadcastEncryptionIds.put(tenantId, ids);
+                    // In range mode the header contains the receivers
+                    if (!rangeMode) {
+                        broadcastEncryptionIds.put(tenantId, receiverSet.toArray());
+                    }
 
-                    encryptionKeyAgent.next(ids);
+                    encryptionKeyAgent.next(receiverSet);
                     broadcastEncryptionHeaders.put(tenantId,
                             Serializer.encryptionHeaderToEncryptionKeyHeaderData(encryptionKeyAgent.getHeader()));
 
@@ -570,26 +676,30 @@ public class ProtectionClient implements IProtectionClient {
 
     @Override
     public Message protectMessage(byte[] message, long notValidAfter, Set<String> receivers, boolean forceNewSessionKey) {
-        Map<String, Set<String>> receiverMap = new HashMap<String, Set<String>>();
+        Map<String, List<Integer>> receiverIdMap = new HashMap<String, List<Integer>>();
 
         for (String fullThingId : receivers) {
-            String[] parts = fullThingId.split("@");
+            int separator = fullThingId.indexOf('@');
 
-            if (parts != null && parts.length > 1) {
-                String thingId = parts[0];
-                String tenantId = parts[1];
+            if (separator > 0) {
+                String tenantId = fullThingId.substring(separator + 1);
 
-                Set<String> tenantReceivers = receiverMap.get(tenantId);
+                List<Integer> tenantReceiverIds = receiverIdMap.get(tenantId);
 
-                if (tenantReceivers == null) {
-                    tenantReceivers = new HashSet<String>();
-                    receiverMap.put(tenantId, tenantReceivers);
+                if (tenantReceiverIds == null) {
+                    tenantReceiverIds = new ArrayList<Integer>();
+                    receiverIdMap.put(tenantId, tenantReceiverIds);
                 }
 
-                tenantReceivers.add(thingId);
+                tenantReceiverIds.add(Integer.valueOf(fullThingId.substring(0, separator)));
             }
         }
 
+        Map<String, ReceiverSet> receiverMap = new HashMap<String, ReceiverSet>();
+        for (Map.Entry<String, List<Integer>> entry : receiverIdMap.entrySet()) {
+            receiverMap.put(entry.getKey(), ReceiverSet.of(entry.getValue()));
+        }
+
         log.debug("{}", receiverMap);
         return protectMessage(message, notValidAfter, receiverMap, forceNewSessionKey);
     }
@@ -606,7 +716,7 @@ public class ProtectionClient implements IProtectionClient {
             numberReceivers += entry.getValue().length;
         }
 
-        int numberMaxReceivers = decryptionKeyAgent.getPublicKey().size() / 2 - 1;
+        int numberMaxReceivers = decryptionKeyAgent.getMaximumNumberOfDecryptionKeyAgents();
         int tenants = protectedMessage.getBroadcastEncryptedSessionKeys().size();
 
         if(protectedMessage != null && protectedMessage.validate(timestamp)) {
@@ -636,10 +746,23 @@ public class ProtectionClient implements IProtectionClient {
                 byte[] encryptedSessionKey = protectedMessage.getBroadcastEncryptedSessionKeys().get(getTenantId());
                 EncryptionHeaderData headerData = protectedMessage.getBroadcastEncryptionHeaders().get(getTenantId());
                 int[] ids = protectedMessage.getBroadcastEncryptionIds().get(getTenantId());
+                ReceiverSet receiverSet = ids != null ? ReceiverSet.of(ids) : ReceiverSet.EMPTY;
+
+                // Headers of senders in range mode contain the receivers as ranges instead of the receiver ids
+                Element beKeyElem = null;
+                if (encryptedSessionKey != null && headerData != null && ids == null && headerData.getRanges() != null) {
+                    try {
+                        beKeyElem = decryptionKeyAgent.decapsulate(Deserializer.encryptionHeaderFromEncryptionHeaderData(headerData));
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Header contains invalid ranges: {}", e.getMessage());
+                    }
+                } else if (encryptedSessionKey != null && headerData != null && receiverSet.contains(thingId)) {
+                    beKeyElem = decryptionKeyAgent.getKey(Deserializer.encryptionHeaderFromEncryptionHeaderData(headerData), receiverSet);
+                }
 
-                if(encryptedSessionKey != null && headerData != null && ids != null) {
-                    log.debug("Header Data: {}, IDs: {}, DKA: {}", headerData.toString(), Arrays.toString(ids), decryptionKeyAgent.toString());
-                    byte[] beKey = decryptionKeyAgent.getKeyBytes(Deserializer.encryptionHeaderFromEncryptionHeaderData(headerData), ids);
+                if(beKeyElem != null) {
+                    log.debug("Header Data: {}, IDs: {}, DKA: {}", headerData, receiverSet, decryptionKeyAgent);
+                    byte[] beKey = beKeyElem.toBytes();
                     byte[] key = new byte[0];
 
                     log.debug("BE Key: {}", Arrays.hashCode(beKey));
@@ -657,9 +780,9 @@ public class ProtectionClient implements IProtectionClient {
                     decryptionSessionKeys.put(sessionKey.getSessionId(), sessionKey);
 
                 } else {
-                    // Message is not encrypted for this tenant
-                    log.warn("Message is not encrypted for this tenant. Encrypted session key: {} Header Data: {} IDs: {}",
-                            encryptedSessionKey!=null?encryptedSessionKey.hashCode():encryptedSessionKey, headerData, Arrays.toString(ids));
+                    // Message is not encrypted for this tenant or thing
+                    log.warn("Message is not encrypted for this thing. Encrypted session key: {} Header Data: {} IDs: {}",
+                            encryptedSessionKey!=null?encryptedSessionKey.hashCode():encryptedSessionKey, headerData, receiverSet);
                     logEvent("{\"event\": \"retrieve_message_error\", \"data\":\""+getFullThingId()+"\"}");
                     return null;
                 }
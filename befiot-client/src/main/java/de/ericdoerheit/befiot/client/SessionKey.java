@@ -4,7 +4,7 @@ package de.ericdoerheit.befiot.client;
  * Created by ericdoerheit on 04/03/16.
  */
 public class SessionKey {
-    private int sessionId;
+    private long sessionId;
     private byte[] sessionKey;
     private long notValidAfter;
 
@@ -15,11 +15,11 @@ public class SessionKey {
         return timestamp <= notValidAfter;
     }
 
-    public int getSessionId() {
+    public long getSessionId() {
         return sessionId;
     }
 
-    public void setSessionId(int sessionId) {
+    public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
     }
 
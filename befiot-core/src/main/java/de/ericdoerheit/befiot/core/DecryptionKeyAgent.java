@@ -2,11 +2,13 @@ package de.ericdoerheit.befiot.core;
 
 import it.unisa.dia.gas.jpbc.Element;
 import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingPreProcessing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -15,6 +17,8 @@ import java.util.List;
 public class DecryptionKeyAgent {
     private static final Logger log = LoggerFactory.getLogger(DecryptionKeyAgent.class);
 
+    public static final int DEFAULT_PRODUCT_CACHE_SIZE = 16;
+
     private long validNotBefore;
     private long validNotAfter;
 
@@ -22,7 +26,24 @@ public class DecryptionKeyAgent {
     private int id;
     private Element privateKey;
     private List<Element> publicKey;
-    private Element currentKey;
+    private volatile Element currentKey;
+
+    // Number of ids per block B of the partitioned scheme or 0 for the basic scheme with one block of n ids
+    private int blockSize;
+
+    // Precomputed pairing for the first argument g_id (computed on first use). Only a fallback for pairings without
+    // product pairings or if the product pairing is disabled, since the product pairing is faster
+    private volatile PairingPreProcessing gIPairingPreProcessing;
+
+    // Compute e(g_id, C1) * e(-product, C0) as one product of pairings with a single final exponentiation
+    private boolean productPairing;
+
+    // Products d_id * prod_{j in S, j != id} g_{B+1-j+id} of recent receiver sets S (local ids within the block)
+    private ReceiverSetProductCache productCache;
+
+    // Prefix products of g_{B+1-j+id} (j != id) for headers with ranges of receivers, built on first use
+    private volatile PrefixProductTable rangeTable;
+    private final Object rangeTableLock = new Object();
 
     /**
      * Initialize the Decryption Key Agent with given parameters.
@@ -33,60 +54,445 @@ public class DecryptionKeyAgent {
      * @param validNotAfter
      */
     public DecryptionKeyAgent(long validNotBefore, long validNotAfter, Pairing pairing, int id, Element privateKey, List<Element> publicKey) {
+        this(validNotBefore, validNotAfter, pairing, id, privateKey, publicKey, 0);
+    }
+
+    /**
+     * Initialize the Decryption Key Agent of the partitioned scheme with given parameters.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param id
+     * @param privateKey d_id = g_b^(gamma_l) where l is the block and b the id within the block
+     * @param publicKey g_0, ..., g_2B (g_{B+1} is the zero element), v_1, ..., v_A
+     * @param blockSize Number of ids per block B or 0 for the basic scheme with one block
+     */
+    public DecryptionKeyAgent(long validNotBefore, long validNotAfter, Pairing pairing, int id, Element privateKey,
+                              List<Element> publicKey, int blockSize) {
+        PairingRegistry.checkG1(pairing, privateKey.getField());
+        PairingRegistry.checkPublicKey(pairing, publicKey);
+
         this.validNotBefore = validNotBefore;
         this.validNotAfter = validNotAfter;
         this.pairing = pairing;
         this.id = id;
         this.privateKey = privateKey;
         this.publicKey = publicKey;
+        this.blockSize = blockSize;
+        this.productPairing = pairing.isProductPairingSupported();
+
+        this.productCache = new ReceiverSetProductCache(DEFAULT_PRODUCT_CACHE_SIZE) {
+            @Override
+            protected Element baseElement() {
+                return DecryptionKeyAgent.this.privateKey;
+            }
+
+            @Override
+            protected Element factorElement(int receiverId) {
+                int blockSize = getBlockSize();
+                int localId = Util.localId(id, blockSize);
+                int localReceiverId = Util.localId(receiverId, blockSize);
+                if (localReceiverId == localId) {
+                    return null;
+                }
+
+                return publicKey.get(blockSize + 1 - localReceiverId + localId);
+            }
+        };
     }
 
     /**
      * This method decrypts the session key based on the information given in the header and the private key stored
      * in the Decryption Key Agent. The header contains C0, C1 and the description of the set of authorized users.
+     * The key is kept as current key. Threads which share this Decryption Key Agent should use
+     * {@link #decapsulate(EncryptionHeader, int[])} instead.
      * @return
      */
     public Element getKey(EncryptionHeader header, int[] ids) {
-        if (header != null && header.getC0Elem() != null && header.getC1Elem() != null && ids != null) {
-            log.debug("C0: {}, C1: {}, IDs: {}", Arrays.hashCode(header.getC0Elem().toBytes()), Arrays.hashCode(header.getC1Elem().toBytes()), Arrays.toString(ids));
+        Element keyElem = decapsulate(header, ids);
+        if (keyElem != null) {
+            currentKey = keyElem;
+        }
+        return keyElem;
+    }
+
+    /**
+     * Same as {@link #getKey(EncryptionHeader, int[])} for the ids of the given receiver set.
+     * @param header
+     * @param receiverSet
+     * @return
+     */
+    public Element getKey(EncryptionHeader header, ReceiverSet receiverSet) {
+        Element keyElem = decapsulate(header, receiverSet);
+        if (keyElem != null) {
+            currentKey = keyElem;
+        }
+        return keyElem;
+    }
+
+    /**
+     * Same as {@link #decapsulate(EncryptionHeader, int[])} for the ids of the given receiver set. Returns null if the
+     * id of this Decryption Key Agent is not contained.
+     * @param header
+     * @param receiverSet
+     * @return
+     */
+    public Element decapsulate(EncryptionHeader header, ReceiverSet receiverSet) {
+        if (!receiverSet.contains(id)) {
+            return null;
+        }
+        return decapsulate(header, receiverSet.ids());
+    }
+
+    /**
+     * Decrypts the session key of the given header without changing the state of this Decryption Key Agent. Can be
+     * called by several threads at once.
+     * @param header
+     * @param ids
+     * @return The immutable session key or null if the header or the ids are incomplete
+     */
+    public Element decapsulate(EncryptionHeader header, int[] ids) {
+        Element c1Elem = c1Elem(header, ids);
+        if (header != null && header.getC0Elem() != null && c1Elem != null && ids != null) {
+            // Refuse headers of another curve
+            PairingRegistry.checkG1(pairing, header.getC0Elem().getField());
+
+            log.debug("C0: {}, C1: {}, IDs: {}", Arrays.hashCode(header.getC0Elem().toBytes()), Arrays.hashCode(c1Elem.toBytes()), Arrays.toString(ids));
             Element c0Elem = header.getC0Elem();
-            Element c1Elem = header.getC1Elem();
-            Element gIElem = publicKey.get(id);
 
-            Element e1Elem = pairing.pairing(gIElem, c1Elem);
+            // Only the receivers of the own block contribute to the product (all receivers in the basic scheme)
+            int[] blockIds = header.getC1Elems() != null ? idsOfOwnBlock(ids) : ids;
+
+            // d_id * prod_{j in ids, j != id} g_{B+1-j+id}
+            Element productElem = product(blockIds, header.getRanges() != null);
+            log.debug("Product cache: {}", productCache);
 
-            Element productElem = privateKey.duplicate();
-            log.debug("Product base is d_{}.", id);
+            log.debug("Decrypt key which is available for {} users. This Decryption Key Agent has id {}.", blockIds.length, id);
+            return computeKey(c0Elem, c1Elem, productElem).getImmutable();
+        }
+
+        log.warn("IDs, header or header element is null. Header: {}, IDs: {}", header, Arrays.toString(ids));
+        return null;
+    }
+
+    /**
+     * Decrypts the session key of a header which contains the receiver ids as ranges (see
+     * {@link EncryptionKeyAgent#setRangeMode(boolean)}). Returns null if the header does not contain ranges or the id
+     * of this Decryption Key Agent is not contained. The ranges are not expanded to the single ids, only the ranges
+     * of the own block are used.
+     * @param header
+     * @return
+     * @throws IllegalArgumentException if the ranges are not ascending, overlap or contain ids outside 1, ..., A * B
+     */
+    public Element decapsulate(EncryptionHeader header) {
+        if (header == null || header.getRanges() == null || header.getC0Elem() == null) {
+            log.warn("Header does not contain the ranges of the receivers. Header: {}", header);
+            return null;
+        }
 
-            // publicKey.size() == 2n + 2 <=> n = (publicKey.size() - 2) / 2
-            int n = (publicKey.size() - 2) / 2;
-            for (int i = 0; i < ids.length; i++) {
+        int[] ranges = header.getRanges();
+        ReceiverSet.checkRanges(ranges, getMaximumNumberOfDecryptionKeyAgents());
+        if (!ReceiverSet.rangesContain(ranges, id)) {
+            return null;
+        }
+
+        int blockSize = getBlockSize();
+        int block = Util.blockOf(id, blockSize);
+        int firstIdOfBlock = block * blockSize + 1;
+        int lastIdOfBlock = firstIdOfBlock + blockSize - 1;
+
+        // Ranges of the own block in local ids and position of the own block among the blocks with receivers
+        int[] localRanges = new int[ranges.length];
+        int length = 0;
+        int position = 0;
+        int previousBlock = -1;
+        for (int i = 0; i < ranges.length; i += 2) {
+            int firstNewBlock = Math.max(Util.blockOf(ranges[i], blockSize), previousBlock + 1);
+            int lastBlockBefore = Math.min(Util.blockOf(ranges[i + 1], blockSize), block - 1);
+            if (lastBlockBefore >= firstNewBlock) {
+                position += lastBlockBefore - firstNewBlock + 1;
+            }
+            previousBlock = Util.blockOf(ranges[i + 1], blockSize);
+
+            if (ranges[i] <= lastIdOfBlock && ranges[i + 1] >= firstIdOfBlock) {
+                localRanges[length++] = Util.localId(Math.max(ranges[i], firstIdOfBlock), blockSize);
+                localRanges[length++] = Util.localId(Math.min(ranges[i + 1], lastIdOfBlock), blockSize);
+            }
+        }
 
-                int j = ids[i];
+        Element c1Elem = header.getC1Elem();
+        if (header.getC1Elems() != null) {
+            c1Elem = position < header.getC1Elems().size() ? header.getC1Elems().get(position) : null;
+        }
+        if (c1Elem == null) {
+            log.warn("Header does not contain C1 for block {}.", block);
+            return null;
+        }
 
-                if (j != id) {
-                    int k = n + 1 - j + id;
-                    Element gKElem = publicKey.get(k);
-                    log.debug("Multiply g_{} to product.", k);
-                    productElem.mul(gKElem);
+        // Refuse headers of another curve
+        PairingRegistry.checkG1(pairing, header.getC0Elem().getField());
+
+        Element productElem = rangeProduct(Arrays.copyOf(localRanges, length), firstIdOfBlock - 1);
+        log.debug("Decrypt key which is available for the ranges {}. This Decryption Key Agent has id {}.",
+                Arrays.toString(ranges), id);
+        return computeKey(header.getC0Elem(), c1Elem, productElem).getImmutable();
+    }
+
+    /**
+     * Returns d_id * prod_{j in blockIds, j != id} g_{B+1-j+id}. If the header contains ranges, the product of
+     * receivers which form few ranges is computed with one multiplication and one division per range.
+     */
+    private Element product(int[] blockIds, boolean ranges) {
+        if (ranges) {
+            int[] sortedIds = Arrays.copyOf(blockIds, blockIds.length);
+            Arrays.sort(sortedIds);
+
+            if (2 * ReceiverSet.numberOfRanges(sortedIds) < sortedIds.length) {
+                int blockSize = getBlockSize();
+                int offset = Util.blockOf(id, blockSize) * blockSize;
+                int[] localRanges = ReceiverSet.ranges(sortedIds);
+                for (int i = 0; i < localRanges.length; i++) {
+                    localRanges[i] -= offset;
                 }
+                return rangeProduct(localRanges, offset);
             }
+        }
 
-            Element e2Elem = pairing.pairing(productElem, c0Elem);
+        return productCache.product(blockIds);
+    }
 
-            log.debug("Decrypt key which is available for {} users. This Decryption Key Agent has id {}.", n, id);
-            currentKey = e1Elem.div(e2Elem);
-            return currentKey;
+    /**
+     * Returns d_id * prod_{j in ranges, j != id} g_{B+1-j+id} for ranges of local ids of the own block. Ranges which
+     * are shorter than two receivers on average are multiplied receiver by receiver.
+     * @param localRanges Ascending ranges of local ids which do not overlap
+     * @param offset Id before the first id of the own block
+     */
+    private Element rangeProduct(int[] localRanges, int offset) {
+        int size = 0;
+        for (int i = 0; i < localRanges.length; i += 2) {
+            size += localRanges[i + 1] - localRanges[i] + 1;
         }
 
-        log.warn("IDs, header or header element is null. Header: {}, IDs: {}", header, Arrays.toString(ids));
-        return null;
+        if (localRanges.length >= size) {
+            int[] blockIds = new int[size];
+            int length = 0;
+            for (int i = 0; i < localRanges.length; i += 2) {
+                for (int localId = localRanges[i]; localId <= localRanges[i + 1]; localId++) {
+                    blockIds[length++] = offset + localId;
+                }
+            }
+            return productCache.product(blockIds);
+        }
+
+        PrefixProductTable rangeTable = rangeTable();
+        Element productElem = privateKey.duplicate();
+        for (int i = 0; i < localRanges.length; i += 2) {
+            productElem.mul(rangeTable.range(localRanges[i], localRanges[i + 1]));
+        }
+        return productElem;
+    }
+
+    /**
+     * Returns the prefix products of g_{B+1-j+id} for the local ids j = 1, ..., B where the own id does not contribute.
+     */
+    private PrefixProductTable rangeTable() {
+        PrefixProductTable rangeTable = this.rangeTable;
+        if (rangeTable == null) {
+            synchronized (rangeTableLock) {
+                rangeTable = this.rangeTable;
+                if (rangeTable == null) {
+                    final int blockSize = getBlockSize();
+                    final int localId = Util.localId(id, blockSize);
+                    final List<Element> publicKey = this.publicKey;
+                    rangeTable = new PrefixProductTable(pairing.getG1(), blockSize,
+                            PrefixProductTable.DEFAULT_MAXIMUM_ELEMENTS) {
+                        @Override
+                        protected Element factorElement(int localReceiverId) {
+                            if (localReceiverId == localId) {
+                                return null;
+                            }
+                            return publicKey.get(blockSize + 1 - localReceiverId + localId);
+                        }
+                    };
+                    this.rangeTable = rangeTable;
+                }
+            }
+        }
+        return rangeTable;
+    }
+
+    /**
+     * Returns the table of prefix products for headers with ranges or null if it is not built yet.
+     * @return
+     */
+    public PrefixProductTable getRangeTable() {
+        return rangeTable;
+    }
+
+    /**
+     * Returns C1 of the header which belongs to the block of this Decryption Key Agent. In the partitioned scheme the
+     * header contains one C1 for each block with receivers in ascending block order.
+     */
+    private Element c1Elem(EncryptionHeader header, int[] ids) {
+        if (header == null || ids == null) {
+            return null;
+        }
+
+        List<Element> c1Elems = header.getC1Elems();
+        if (c1Elems == null) {
+            return header.getC1Elem();
+        }
+
+        int blockSize = getBlockSize();
+        int block = Util.blockOf(id, blockSize);
+
+        // Position of the own block among the blocks with receivers
+        int[] sortedIds = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sortedIds);
+        int position = 0;
+        int previousBlock = -1;
+        for (int receiverId : sortedIds) {
+            int receiverBlock = Util.blockOf(receiverId, blockSize);
+            if (receiverBlock >= block) {
+                break;
+            }
+            if (receiverBlock != previousBlock) {
+                position++;
+                previousBlock = receiverBlock;
+            }
+        }
+
+        if (position >= c1Elems.size()) {
+            log.warn("Header does not contain C1 for block {}.", block);
+            return null;
+        }
+        return c1Elems.get(position);
+    }
+
+    private int[] idsOfOwnBlock(int[] ids) {
+        int blockSize = getBlockSize();
+        int block = Util.blockOf(id, blockSize);
+
+        int[] blockIds = new int[ids.length];
+        int length = 0;
+        for (int receiverId : ids) {
+            if (Util.blockOf(receiverId, blockSize) == block) {
+                blockIds[length++] = receiverId;
+            }
+        }
+        return Arrays.copyOf(blockIds, length);
+    }
+
+    /**
+     * Computes the key e(g_id, C1) / e(d_id * product, C0). If the pairing supports it, both pairings are computed as
+     * one product of pairings e(g_id, C1) * e((d_id * product)^-1, C0) so that the Miller loops share a single final
+     * exponentiation. Otherwise the first pairing uses the preprocessing of g_id.
+     * @param c0Elem
+     * @param c1Elem
+     * @param productElem d_id multiplied with all g_{B+1-j+id} of the receivers j != id of the block (is modified)
+     * @return
+     */
+    private Element computeKey(Element c0Elem, Element c1Elem, Element productElem) {
+        if (productPairing) {
+            return pairing.pairing(new Element[]{publicKey.get(Util.localId(id, getBlockSize())), productElem.invert()},
+                    new Element[]{c1Elem, c0Elem});
+        }
+
+        Element e1Elem = getGIPairingPreProcessing().pairing(c1Elem);
+        Element e2Elem = pairing.pairing(productElem, c0Elem);
+        return e1Elem.div(e2Elem);
+    }
+
+    /**
+     * Returns the pairing preprocessing of g_id. It is computed on the first call and reused afterwards since g_id
+     * does not change during the life time of the Decryption Key Agent. Only used without the product pairing.
+     * @return
+     */
+    private PairingPreProcessing getGIPairingPreProcessing() {
+        PairingPreProcessing pairingPreProcessing = gIPairingPreProcessing;
+        if (pairingPreProcessing == null) {
+            pairingPreProcessing = pairing.getPairingPreProcessingFromElement(publicKey.get(Util.localId(id, getBlockSize())));
+            gIPairingPreProcessing = pairingPreProcessing;
+        }
+        return pairingPreProcessing;
+    }
+
+    /**
+     * Returns the number of ids per block (n in the basic scheme).
+     * @return
+     */
+    public int getBlockSize() {
+        if (blockSize > 0) {
+            return blockSize;
+        }
+        // publicKey.size() == 2n + 2 <=> n = (publicKey.size() - 2) / 2
+        return (publicKey.size() - 2) / 2;
+    }
+
+    /**
+     * Returns the maximum number of Decryption Key Agents of the broadcast encryption system (A * B).
+     * @return
+     */
+    public int getMaximumNumberOfDecryptionKeyAgents() {
+        int blockSize = getBlockSize();
+        // publicKey.size() == 2B + 1 + A
+        return blockSize * (publicKey.size() - 2 * blockSize - 1);
+    }
+
+    public boolean isPartitioned() {
+        return blockSize > 0;
     }
 
     public boolean validate(long timestamp) {
         return validNotBefore <= timestamp && timestamp <= validNotAfter;
     }
 
+    /**
+     * Returns the cache of receiver set products which also holds the hit and miss counters.
+     * @return
+     */
+    public ReceiverSetProductCache getProductCache() {
+        return productCache;
+    }
+
+    /**
+     * Sets the maximum number of receiver sets whose products are cached, 0 disables the cache.
+     * @param productCacheSize
+     */
+    public void setProductCacheSize(int productCacheSize) {
+        productCache.setMaximumSize(productCacheSize);
+    }
+
+    /**
+     * Sets the receiver sets this Decryption Key Agent expects to decrypt for, so that their products share common
+     * sub-products. Receiver sets which do not contain the id of this Decryption Key Agent are ignored.
+     * @param receiverSets Active receiver sets or null to remove them
+     */
+    public void setActiveReceiverSets(Collection<ReceiverSet> receiverSets) {
+        List<ReceiverSet> ownReceiverSets = new ArrayList<ReceiverSet>();
+        if (receiverSets != null) {
+            for (ReceiverSet receiverSet : receiverSets) {
+                if (receiverSet.contains(id)) {
+                    ownReceiverSets.add(blockSize > 0 ? ReceiverSet.of(idsOfOwnBlock(receiverSet.ids())) : receiverSet);
+                }
+            }
+        }
+        productCache.setSharedReceiverSets(ownReceiverSets);
+    }
+
+    public boolean isProductPairing() {
+        return productPairing;
+    }
+
+    /**
+     * Enables or disables the product of pairings in {@link #getKey(EncryptionHeader, int[])}. It can only be enabled
+     * if the pairing supports product pairings.
+     * @param productPairing
+     */
+    public void setProductPairing(boolean productPairing) {
+        this.productPairing = productPairing && pairing.isProductPairingSupported();
+    }
+
     public long getValidNotBefore() {
         return validNotBefore;
     }
@@ -107,12 +513,25 @@ public class DecryptionKeyAgent {
         return getKey(header, ids).toBytes();
     }
 
+    public byte[] getKeyBytes(EncryptionHeader header, ReceiverSet receiverSet) {
+        return getKey(header, receiverSet).toBytes();
+    }
+
+    public Pairing getPairing() {
+        return pairing;
+    }
+
     public int getId() {
         return id;
     }
 
     public void setId(int id) {
         this.id = id;
+        this.gIPairingPreProcessing = null;
+        this.productCache.clear();
+        // The active receiver sets were chosen for the previous id
+        this.productCache.setSharedReceiverSets(null);
+        this.rangeTable = null;
     }
 
     public Element getPrivateKey() {
@@ -120,7 +539,9 @@ public class DecryptionKeyAgent {
     }
 
     public void setPrivateKey(Element privateKey) {
+        PairingRegistry.checkG1(pairing, privateKey.getField());
         this.privateKey = privateKey;
+        this.productCache.clear();
     }
 
     public List<Element> getPublicKey() {
@@ -128,7 +549,11 @@ public class DecryptionKeyAgent {
     }
 
     public void setPublicKey(List<Element> publicKey) {
+        PairingRegistry.checkPublicKey(pairing, publicKey);
         this.publicKey = publicKey;
+        this.gIPairingPreProcessing = null;
+        this.productCache.clear();
+        this.rangeTable = null;
     }
 
     @Override
@@ -150,7 +575,8 @@ public class DecryptionKeyAgent {
         result = 31 * result + (int) (validNotAfter ^ (validNotAfter >>> 32));
         result = 31 * result + id;
         result = 31 * result + (privateKey != null ? privateKey.hashCode() : 0);
-        result = 31 * result + (publicKey != null ? publicKey.hashCode() : 0);
+        // The public key is not hashed, it can be large and is the same for all Decryption Key Agents of a tenant
+        result = 31 * result + (publicKey != null ? publicKey.size() : 0);
         return result;
     }
 
@@ -161,7 +587,7 @@ public class DecryptionKeyAgent {
                 ", validNotAfter=" + validNotAfter +
                 ", id=" + id +
                 ", privateKey=" + (privateKey != null ? Arrays.toString(privateKey.toBytes()).hashCode() : privateKey) +
-                ", publicKey=" + (publicKey != null ? publicKey.hashCode() : publicKey) +
+                ", publicKeySize=" + (publicKey != null ? publicKey.size() : publicKey) +
                 ", currentKey=" + currentKey +
                 '}';
     }
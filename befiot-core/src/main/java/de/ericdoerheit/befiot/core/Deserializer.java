@@ -18,30 +18,61 @@ import java.util.List;
 public class Deserializer {
     private static final Logger log = LoggerFactory.getLogger(Deserializer.class);
 
-    // TODO: 04/02/16 Use / Implement Pairing Identifier
-
     private static ObjectMapper mapper = new ObjectMapper();
 
     /* --- Decryption Key Agent --- */
     public static DecryptionKeyAgent decryptionKeyAgentFromDecryptionKeyAgentData(DecryptionKeyAgentData
                                                                                           decryptionKeyAgentData) {
+        return decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData, LazyPublicKey.UNBOUNDED);
+    }
+
+    /**
+     * Creates a Decryption Key Agent whose public key elements are decoded on first access.
+     * @param decryptionKeyAgentData
+     * @param maximumCachedPublicKeyElements Maximum number of decoded public key elements which are kept or
+     *                                       {@link LazyPublicKey#UNBOUNDED}
+     * @return
+     */
+    public static DecryptionKeyAgent decryptionKeyAgentFromDecryptionKeyAgentData(DecryptionKeyAgentData
+                                                                                          decryptionKeyAgentData,
+                                                                                  int maximumCachedPublicKeyElements) {
 
         long validNotBefore = decryptionKeyAgentData.getValidNotBefore();
         long validNotAfter = decryptionKeyAgentData.getValidNotAfter();
 
-        Pairing pairing = Util.getDefaultPairing();
-        Element privateKey = pairing.getG1().newElementFromBytes(decryptionKeyAgentData.getPrivateKey());
-        List<Element> publicKey = new ArrayList<Element>();
-        for (byte[] b : decryptionKeyAgentData.getPublicKey()) {
-            publicKey.add(pairing.getG1().newElementFromBytes(b));
-        }
+        Pairing pairing = PairingRegistry.getPairing(decryptionKeyAgentData.getPairingIdentifier());
+        int formatVersion = decryptionKeyAgentData.getFormatVersion();
+        Element privateKey = ElementEncoding.fromBytes(pairing.getG1(), decryptionKeyAgentData.getPrivateKey(), formatVersion);
+        List<Element> publicKey = new LazyPublicKey(pairing.getG1(), decryptionKeyAgentData.getPublicKey(),
+                formatVersion, maximumCachedPublicKeyElements);
         
         DecryptionKeyAgent decryptionKeyAgent = new DecryptionKeyAgent(validNotBefore, validNotAfter, pairing,
-                decryptionKeyAgentData.getId(), privateKey, publicKey);
+                decryptionKeyAgentData.getId(), privateKey, publicKey, decryptionKeyAgentData.getBlockSize());
 
         return decryptionKeyAgent;
     }
 
+    /**
+     * Creates a Decryption Key Agent which reads its public key from the given mapped public key file instead of the
+     * public key of the data.
+     * @param decryptionKeyAgentData
+     * @param publicKeyFile
+     * @return
+     */
+    public static DecryptionKeyAgent decryptionKeyAgentFromDecryptionKeyAgentData(DecryptionKeyAgentData
+                                                                                          decryptionKeyAgentData,
+                                                                                  PublicKeyFile publicKeyFile) {
+        checkPublicKeyFile(decryptionKeyAgentData.getPairingIdentifier(), publicKeyFile);
+
+        Pairing pairing = PairingRegistry.getPairing(decryptionKeyAgentData.getPairingIdentifier());
+        Element privateKey = ElementEncoding.fromBytes(pairing.getG1(), decryptionKeyAgentData.getPrivateKey(),
+                decryptionKeyAgentData.getFormatVersion());
+
+        return new DecryptionKeyAgent(decryptionKeyAgentData.getValidNotBefore(),
+                decryptionKeyAgentData.getValidNotAfter(), pairing, decryptionKeyAgentData.getId(), privateKey,
+                publicKeyFile.getPublicKey(), decryptionKeyAgentData.getBlockSize());
+    }
+
     public static DecryptionKeyAgentData jsonStringToDecryptionKeyAgentData(String jsonString) {
         try {
             DecryptionKeyAgentData decryptionKeyAgentData = mapper.readValue(jsonString, DecryptionKeyAgentData.class);
@@ -65,22 +96,72 @@ public class Deserializer {
     /* --- Encryption Key Agent --- */
     public static EncryptionKeyAgent encryptionKeyAgentFromEncryptionKeyAgentData(EncryptionKeyAgentData
                                                                                           encryptionKeyAgentData) {
+        return encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData, LazyPublicKey.UNBOUNDED);
+    }
+
+    /**
+     * Creates an Encryption Key Agent whose public key elements are decoded on first access.
+     * @param encryptionKeyAgentData
+     * @param maximumCachedPublicKeyElements Maximum number of decoded public key elements which are kept or
+     *                                       {@link LazyPublicKey#UNBOUNDED}
+     * @return
+     */
+    public static EncryptionKeyAgent encryptionKeyAgentFromEncryptionKeyAgentData(EncryptionKeyAgentData
+                                                                                          encryptionKeyAgentData,
+                                                                                  int maximumCachedPublicKeyElements) {
         long validNotBefore = encryptionKeyAgentData.getValidNotBefore();
         long validNotAfter = encryptionKeyAgentData.getValidNotAfter();
 
 
-        Pairing pairing = Util.getDefaultPairing();
-        List<Element> publicKey = new ArrayList<Element>();
-        for (byte[] b : encryptionKeyAgentData.getPublicKey()) {
-            publicKey.add(pairing.getG1().newElementFromBytes(b));
-        }
+        Pairing pairing = PairingRegistry.getPairing(encryptionKeyAgentData.getPairingIdentifier());
+        List<Element> publicKey = new LazyPublicKey(pairing.getG1(), encryptionKeyAgentData.getPublicKey(),
+                encryptionKeyAgentData.getFormatVersion(), maximumCachedPublicKeyElements);
 
         EncryptionKeyAgent encryptionKeyAgent = new EncryptionKeyAgent(validNotBefore, validNotAfter,
-                pairing, publicKey);
+                pairing, publicKey, encryptionKeyAgentData.getBlockSize(), eElemFromData(pairing, encryptionKeyAgentData),
+                EncryptionKeyAgent.DEFAULT_POW_TABLE_WINDOW_SIZE, false);
 
         return encryptionKeyAgent;
     }
 
+    /**
+     * Creates an Encryption Key Agent which reads its public key from the given mapped public key file instead of the
+     * public key of the data.
+     * @param encryptionKeyAgentData
+     * @param publicKeyFile
+     * @return
+     */
+    public static EncryptionKeyAgent encryptionKeyAgentFromEncryptionKeyAgentData(EncryptionKeyAgentData
+                                                                                          encryptionKeyAgentData,
+                                                                                  PublicKeyFile publicKeyFile) {
+        checkPublicKeyFile(encryptionKeyAgentData.getPairingIdentifier(), publicKeyFile);
+
+        Pairing pairing = PairingRegistry.getPairing(encryptionKeyAgentData.getPairingIdentifier());
+
+        return new EncryptionKeyAgent(encryptionKeyAgentData.getValidNotBefore(),
+                encryptionKeyAgentData.getValidNotAfter(), pairing, publicKeyFile.getPublicKey(),
+                encryptionKeyAgentData.getBlockSize(), eElemFromData(pairing, encryptionKeyAgentData),
+                EncryptionKeyAgent.DEFAULT_POW_TABLE_WINDOW_SIZE, false);
+    }
+
+    /**
+     * Returns the precomputed e(g_B, g_1) of the data or null if the data does not contain it (then the Encryption Key
+     * Agent computes it).
+     */
+    private static Element eElemFromData(Pairing pairing, EncryptionKeyAgentData encryptionKeyAgentData) {
+        if (encryptionKeyAgentData.getE() == null) {
+            return null;
+        }
+        return pairing.getGT().newElementFromBytes(encryptionKeyAgentData.getE());
+    }
+
+    private static void checkPublicKeyFile(int pairingIdentifier, PublicKeyFile publicKeyFile) {
+        if (publicKeyFile.getPairingIdentifier() != pairingIdentifier) {
+            throw new IllegalArgumentException("Public key file " + publicKeyFile.getFile() + " belongs to pairing "
+                    + publicKeyFile.getPairingIdentifier() + " instead of " + pairingIdentifier + ".");
+        }
+    }
+
     public static EncryptionKeyAgentData jsonStringToEncryptionKeyAgentData(String jsonString) {
         try {
             EncryptionKeyAgentData encryptionKeyAgentData = mapper.readValue(jsonString, EncryptionKeyAgentData.class);
@@ -107,9 +188,22 @@ public class Deserializer {
         long validNotBefore = keyAgentBuilderData.getValidNotBefore();
         long validNotAfter = keyAgentBuilderData.getValidNotAfter();
 
-        Pairing pairing = Util.getDefaultPairing();
+        Pairing pairing = PairingRegistry.getPairing(keyAgentBuilderData.getPairingIdentifier());
         Element aElem = pairing.getZr().newElementFromBytes(keyAgentBuilderData.getA());
-        Element gElem = pairing.getG1().newElementFromBytes(keyAgentBuilderData.getG());
+        Element gElem = ElementEncoding.fromBytes(pairing.getG1(), keyAgentBuilderData.getG(),
+                keyAgentBuilderData.getFormatVersion());
+
+        if (keyAgentBuilderData.getBlockSize() > 0) {
+            List<Element> mskElems = new ArrayList<Element>();
+            for (byte[] blockMsk : keyAgentBuilderData.getBlockMsks()) {
+                mskElems.add(pairing.getZr().newElementFromBytes(blockMsk));
+            }
+
+            return new KeyAgentBuilder(validNotBefore, validNotAfter, pairing,
+                    keyAgentBuilderData.getMaximumNumberOfDecryptionKeyAgents(), keyAgentBuilderData.getBlockSize(),
+                    aElem, gElem, mskElems);
+        }
+
         Element mskElem = pairing.getZr().newElementFromBytes(keyAgentBuilderData.getMsk());
 
         KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing,
@@ -117,6 +211,41 @@ public class Deserializer {
 
         return keyAgentBuilder;
     }
+
+    /**
+     * Creates the Key Agent Builder of the basic scheme with the public key g_0, ..., g_2n of the given public key file
+     * (see {@link PublicKeyFileGenerator}) instead of generating the public key.
+     * @param keyAgentBuilderData
+     * @param publicKeyFile
+     * @return
+     */
+    public static KeyAgentBuilder keyAgentBuilderFromKeyAgentBuilderData(KeyAgentBuilderData keyAgentBuilderData,
+                                                                         PublicKeyFile publicKeyFile) {
+        if (keyAgentBuilderData.getBlockSize() > 0) {
+            throw new IllegalArgumentException("Public key files are only supported by the basic scheme.");
+        }
+        checkPublicKeyFile(keyAgentBuilderData.getPairingIdentifier(), publicKeyFile);
+
+        Pairing pairing = PairingRegistry.getPairing(keyAgentBuilderData.getPairingIdentifier());
+        Element aElem = pairing.getZr().newElementFromBytes(keyAgentBuilderData.getA());
+        Element gElem = ElementEncoding.fromBytes(pairing.getG1(), keyAgentBuilderData.getG(),
+                keyAgentBuilderData.getFormatVersion());
+        Element mskElem = pairing.getZr().newElementFromBytes(keyAgentBuilderData.getMsk());
+
+        return new KeyAgentBuilder(keyAgentBuilderData.getValidNotBefore(), keyAgentBuilderData.getValidNotAfter(),
+                pairing, keyAgentBuilderData.getMaximumNumberOfDecryptionKeyAgents(), aElem, gElem, mskElem,
+                publicKeyFile.getPublicKey());
+    }
+
+    public static KeyAgentBuilderData jsonStringToKeyAgentBuilderData(String jsonString) {
+        try {
+            return mapper.readValue(jsonString, KeyAgentBuilderData.class);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     public static KeyAgentBuilder jsonStringToKeyAgentBuilder(String jsonString) {
         try {
             KeyAgentBuilderData keyAgentBuilderData = mapper.readValue(jsonString, KeyAgentBuilderData.class);
@@ -159,13 +288,23 @@ public class Deserializer {
 
     /* --- Encryption Header --- */
     public static EncryptionHeader encryptionHeaderFromEncryptionHeaderData(EncryptionHeaderData encryptionHeaderData) {
-        Pairing pairing = Util.getDefaultPairing();
-        Element c0Elem = pairing.getG1().newElementFromBytes(encryptionHeaderData.getC0());
-        Element c1Elem = pairing.getG1().newElementFromBytes(encryptionHeaderData.getC1());
+        Pairing pairing = PairingRegistry.getPairing(encryptionHeaderData.getPairingIdentifier());
+        int formatVersion = encryptionHeaderData.getFormatVersion();
+        Element c0Elem = ElementEncoding.fromBytes(pairing.getG1(), encryptionHeaderData.getC0(), formatVersion);
 
         EncryptionHeader encryptionHeader = new EncryptionHeader();
         encryptionHeader.setC0Elem(c0Elem);
-        encryptionHeader.setC1Elem(c1Elem);
+
+        if (encryptionHeaderData.getC1s() != null) {
+            List<Element> c1Elems = new ArrayList<Element>();
+            for (byte[] c1 : encryptionHeaderData.getC1s()) {
+                c1Elems.add(ElementEncoding.fromBytes(pairing.getG1(), c1, formatVersion));
+            }
+            encryptionHeader.setC1Elems(c1Elems);
+        } else {
+            encryptionHeader.setC1Elem(ElementEncoding.fromBytes(pairing.getG1(), encryptionHeaderData.getC1(), formatVersion));
+        }
+        encryptionHeader.setRanges(encryptionHeaderData.getRanges());
 
         return encryptionHeader;
     }
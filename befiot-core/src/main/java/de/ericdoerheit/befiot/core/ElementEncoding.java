@@ -0,0 +1,58 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+import it.unisa.dia.gas.jpbc.Point;
+
+/**
+ * Encodings of G1 elements in the serialized key agents and headers. The format version is stored in the data
+ * objects, data without a format version uses the uncompressed encoding.
+ */
+public class ElementEncoding {
+
+    // Both coordinates (Element.toBytes())
+    public static final int UNCOMPRESSED = 0;
+
+    // x-coordinate and the sign of y, about half the size of the uncompressed encoding
+    public static final int COMPRESSED = 1;
+
+    /**
+     * Encodes the element in the given format. Elements which are not points (e.g. Zr) and the zero element (g_{n+1}
+     * of the public key) are always encoded uncompressed.
+     * @param element
+     * @param formatVersion
+     * @return
+     */
+    public static byte[] toBytes(Element element, int formatVersion) {
+        if (formatVersion == COMPRESSED && element instanceof Point && !element.isZero()) {
+            return ((Point) element).toBytesCompressed();
+        }
+        return element.toBytes();
+    }
+
+    /**
+     * Decodes an element of the given field which was encoded with {@link #toBytes(Element, int)}.
+     * @param field
+     * @param bytes
+     * @param formatVersion
+     * @return
+     */
+    public static Element fromBytes(Field field, byte[] bytes, int formatVersion) {
+        if (formatVersion == UNCOMPRESSED) {
+            return field.newElementFromBytes(bytes);
+        }
+        if (formatVersion != COMPRESSED) {
+            throw new IllegalArgumentException("Unknown format version " + formatVersion + ".");
+        }
+
+        Element element = field.newElement();
+        if (element instanceof Point && bytes.length == ((Point) element).getLengthInBytesCompressed()) {
+            ((Point) element).setFromBytesCompressed(bytes);
+            return element;
+        }
+
+        // Uncompressed zero element or not a point
+        element.setFromBytes(bytes);
+        return element;
+    }
+}
@@ -0,0 +1,53 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+import java.util.Arrays;
+
+/**
+ * Result of one encapsulation: the session key and the header which the receivers need to compute it. Encapsulations
+ * are immutable and can be shared between threads.
+ */
+public final class Encapsulation {
+    private final int[] ids;
+    private final EncryptionHeader header;
+    private final Element keyElem;
+
+    public Encapsulation(int[] ids, EncryptionHeader header, Element keyElem) {
+        this.ids = Arrays.copyOf(ids, ids.length);
+        this.header = new EncryptionHeader(header);
+        this.keyElem = keyElem.getImmutable();
+    }
+
+    /**
+     * Returns the receiver ids the key was encapsulated for.
+     * @return
+     */
+    public int[] getIds() {
+        return Arrays.copyOf(ids, ids.length);
+    }
+
+    /**
+     * Returns a copy of the header (the elements are immutable).
+     * @return
+     */
+    public EncryptionHeader getHeader() {
+        return new EncryptionHeader(header);
+    }
+
+    public Element getKey() {
+        return keyElem;
+    }
+
+    public byte[] getKeyBytes() {
+        return keyElem.toBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "Encapsulation{" +
+                "ids=" + Arrays.toString(ids) +
+                ", key=" + Arrays.hashCode(keyElem.toBytes()) +
+                '}';
+    }
+}
@@ -2,6 +2,9 @@ package de.ericdoerheit.befiot.core;
 
 import it.unisa.dia.gas.jpbc.Element;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Created by ericdorheit on 08/02/16.
  */
@@ -9,9 +12,46 @@ public class EncryptionHeader {
     private Element c0Elem;
     private Element c1Elem;
 
+    // Partitioned scheme: one C1 per block which contains receivers (in ascending block order), c1Elem is not used
+    private List<Element> c1Elems;
+
+    // Optional compact encoding of the receiver ids as pairs of the first and the last id of each range
+    private int[] ranges;
+
     public EncryptionHeader() {
     }
 
+    /**
+     * Header of the basic scheme.
+     * @param c0Elem
+     * @param c1Elem
+     */
+    public EncryptionHeader(Element c0Elem, Element c1Elem) {
+        this.c0Elem = c0Elem;
+        this.c1Elem = c1Elem;
+    }
+
+    /**
+     * Header of the partitioned scheme.
+     * @param c0Elem
+     * @param c1Elems One C1 per block which contains receivers (in ascending block order)
+     */
+    public EncryptionHeader(Element c0Elem, List<Element> c1Elems) {
+        this.c0Elem = c0Elem;
+        this.c1Elems = c1Elems;
+    }
+
+    /**
+     * Copy of the given header which shares its elements.
+     * @param encryptionHeader
+     */
+    public EncryptionHeader(EncryptionHeader encryptionHeader) {
+        this.c0Elem = encryptionHeader.c0Elem;
+        this.c1Elem = encryptionHeader.c1Elem;
+        this.c1Elems = encryptionHeader.c1Elems;
+        this.ranges = encryptionHeader.ranges != null ? Arrays.copyOf(encryptionHeader.ranges, encryptionHeader.ranges.length) : null;
+    }
+
     public Element getC0Elem() {
         return c0Elem;
     }
@@ -28,6 +68,27 @@ public class EncryptionHeader {
         this.c1Elem = c1Elem;
     }
 
+    public List<Element> getC1Elems() {
+        return c1Elems;
+    }
+
+    public void setC1Elems(List<Element> c1Elems) {
+        this.c1Elems = c1Elems;
+    }
+
+    /**
+     * Returns the receiver ids as ranges (see {@link ReceiverSet#toRanges()}) or null if the header does not contain
+     * the receiver ids.
+     * @return
+     */
+    public int[] getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(int[] ranges) {
+        this.ranges = ranges;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -36,6 +97,13 @@ public class EncryptionHeader {
         EncryptionHeader that = (EncryptionHeader) o;
 
         if (!c0Elem.isEqual(that.c0Elem)) return false;
+        if (c1Elems != null || that.c1Elems != null) {
+            if (c1Elems == null || that.c1Elems == null || c1Elems.size() != that.c1Elems.size()) return false;
+            for (int i = 0; i < c1Elems.size(); i++) {
+                if (!c1Elems.get(i).isEqual(that.c1Elems.get(i))) return false;
+            }
+            return true;
+        }
         return c1Elem.isEqual(that.c1Elem);
     }
 }
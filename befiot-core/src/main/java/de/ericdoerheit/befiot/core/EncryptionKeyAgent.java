@@ -5,10 +5,19 @@ import it.unisa.dia.gas.jpbc.Pairing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by ericdorheit on 02/02/16.
@@ -16,18 +25,49 @@ import java.util.List;
 public class EncryptionKeyAgent {
     private static final Logger log = LoggerFactory.getLogger(EncryptionKeyAgent.class);
 
+    // Window size of the fixed-base tables for g and e(g_B, g_1), 0 disables the tables
+    public static final int DEFAULT_POW_TABLE_WINDOW_SIZE = 5;
+
+    public static final int DEFAULT_PRODUCT_CACHE_SIZE = 16;
+
     private long validNotBefore;
     private long validNotAfter;
 
     private Pairing pairing;
     private List<Element> publicKey;
 
-    private int n;
-    private Element eElem;
+    // The n ids are partitioned into numberOfBlocks blocks of blockSize ids (the basic scheme has one block of n ids)
+    private int blockSize;
+    private int numberOfBlocks;
+    private volatile Element eElem;
+    // False while e(g_B, g_1) which was given to the constructor is not yet checked against the public key
+    private volatile boolean eElemVerified;
+    private final Object eElemLock = new Object();
+
+    private int powTableWindowSize;
+    private volatile FixedBasePowTable gPowTable;
+    private volatile FixedBasePowTable ePowTable;
+    // True while the tables are to be built on the first key
+    private volatile boolean powTablesPending;
+    private final Object powTableLock = new Object();
+
+    // Products v_l * prod_{j in S_l} g_{B+1-j} of recent receiver sets S_l per block l
+    private ReceiverSetProductCache[] productCaches;
+
+    // Range mode: products of ranges of receivers from prefix products of g_{B+1-j}, the table is built on first use
+    private volatile boolean rangeMode;
+    private volatile PrefixProductTable rangeTable;
+    private final Object rangeTableLock = new Object();
+
+    // Executor of nextBatch, the shared default pool is used if it is not set
+    private static ExecutorService defaultBatchExecutor;
+    private volatile ExecutorService batchExecutor;
+
+    // Precomputed t, C0 and key of upcoming encapsulations, null if disabled
+    private volatile RandomnessPool randomnessPool;
 
-    private Element keyElem;
-    private Element c0Elem;
-    private Element c1Elem;
+    // Result of the last call of next
+    private volatile Encapsulation currentEncapsulation;
 
     /**
      * Initialize the Decryption Key Agent with given public key.
@@ -37,16 +77,205 @@ public class EncryptionKeyAgent {
      * @param validNotAfter
      */
     public EncryptionKeyAgent(long validNotBefore, long validNotAfter, Pairing pairing, List<Element> publicKey) {
+        this(validNotBefore, validNotAfter, pairing, publicKey, 0);
+    }
+
+    /**
+     * Initialize the Encryption Key Agent with given public key of the partitioned scheme.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param publicKey g_0, ..., g_2B (g_{B+1} is the zero element), v_1, ..., v_A
+     * @param blockSize Number of ids per block B or 0 for the basic scheme with one block
+     */
+    public EncryptionKeyAgent(long validNotBefore, long validNotAfter, Pairing pairing, List<Element> publicKey,
+                              int blockSize) {
+        this(validNotBefore, validNotAfter, pairing, publicKey, blockSize, DEFAULT_POW_TABLE_WINDOW_SIZE, false);
+    }
+
+    /**
+     * Initialize the Encryption Key Agent with given public key and fixed-base tables for the exponentiations of
+     * g and e(g_B, g_1) in {@link #next(int[])}.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param publicKey
+     * @param blockSize Number of ids per block B or 0 for the basic scheme with one block
+     * @param powTableWindowSize Window size of the fixed-base tables (trades memory for speed), 0 disables the tables
+     * @param precomputeInBackground Build the tables in a background thread instead of the constructor
+     */
+    public EncryptionKeyAgent(long validNotBefore, long validNotAfter, Pairing pairing, List<Element> publicKey,
+                              int blockSize, int powTableWindowSize, boolean precomputeInBackground) {
+        this(validNotBefore, validNotAfter, pairing, publicKey, blockSize, null, powTableWindowSize,
+                precomputeInBackground);
+    }
+
+    /**
+     * Initialize the Encryption Key Agent with given public key and the precomputed e(g_B, g_1) (e.g. of the
+     * serialized Encryption Key Agent), so that the constructor does not compute a pairing. The given e(g_B, g_1) is
+     * verified against the public key when the first key is computed. Unless they are precomputed in the background,
+     * the fixed-base tables are then built with the first key as well, so that deserializing stays cheap and the
+     * tables are only built for Encryption Key Agents which are used.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param publicKey
+     * @param blockSize Number of ids per block B or 0 for the basic scheme with one block
+     * @param eElem e(g_B, g_1) or null to compute it
+     * @param powTableWindowSize Window size of the fixed-base tables (trades memory for speed), 0 disables the tables
+     * @param precomputeInBackground Build the tables in a background thread instead of the constructor or the first key
+     */
+    public EncryptionKeyAgent(long validNotBefore, long validNotAfter, Pairing pairing, List<Element> publicKey,
+                              int blockSize, Element eElem, int powTableWindowSize, boolean precomputeInBackground) {
         this.validNotBefore = validNotBefore;
         this.validNotAfter = validNotAfter;
         this.pairing = pairing;
+        PairingRegistry.checkPublicKey(pairing, publicKey);
         this.publicKey = publicKey;
 
-        // publicKey.size() == 2n + 2 <=> n = (publicKey.size() - 2) / 2
-        this.n = (publicKey.size() - 2) / 2;
-        Element gNElem = publicKey.get(n);
+        if (blockSize > 0) {
+            // publicKey.size() == 2B + 1 + A
+            this.blockSize = blockSize;
+            this.numberOfBlocks = publicKey.size() - 2 * blockSize - 1;
+        } else {
+            // publicKey.size() == 2n + 2 <=> n = (publicKey.size() - 2) / 2
+            this.blockSize = (publicKey.size() - 2) / 2;
+            this.numberOfBlocks = 1;
+        }
+
+        if (eElem != null) {
+            this.eElem = eElem.getImmutable();
+            this.eElemVerified = false;
+        } else {
+            this.eElem = computeEElem();
+            this.eElemVerified = true;
+        }
+
+        this.productCaches = new ReceiverSetProductCache[numberOfBlocks];
+        for (int block = 0; block < numberOfBlocks; block++) {
+            productCaches[block] = newProductCache(block);
+        }
+
+        this.powTableWindowSize = powTableWindowSize;
+        if (powTableWindowSize > 0) {
+            if (precomputeInBackground) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        computePowTables();
+                    }
+                }, "eka-pow-tables");
+                thread.setDaemon(true);
+                thread.start();
+            } else if (!eElemVerified) {
+                powTablesPending = true;
+            } else {
+                computePowTables();
+            }
+        }
+    }
+
+    private ReceiverSetProductCache newProductCache(final int block) {
+        return new ReceiverSetProductCache(DEFAULT_PRODUCT_CACHE_SIZE) {
+            @Override
+            protected Element baseElement() {
+                // v_1, ..., v_A are the last elements of the public key
+                return publicKey.get(2 * blockSize + 1 + block);
+            }
+
+            @Override
+            protected Element factorElement(int receiverId) {
+                return publicKey.get(blockSize + 1 - Util.localId(receiverId, blockSize));
+            }
+        };
+    }
+
+    /**
+     * Computes the fixed-base tables for g and e(g_B, g_1). Until they are available exponentiations are done without
+     * tables.
+     */
+    private void computePowTables() {
+        synchronized (powTableLock) {
+            long start = System.currentTimeMillis();
+            int bits = pairing.getZr().getOrder().bitLength();
+
+            gPowTable = new FixedBasePowTable(publicKey.get(0), bits, powTableWindowSize);
+            ePowTable = new FixedBasePowTable(eElem, bits, powTableWindowSize);
+            powTablesPending = false;
+
+            log.debug("Fixed-base tables with window size {} ({} elements) computed in {}ms.", powTableWindowSize,
+                    gPowTable.getNumberOfElements() + ePowTable.getNumberOfElements(), System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Builds the fixed-base tables which were deferred to the first key.
+     */
+    private void computePendingPowTables() {
+        if (!powTablesPending) {
+            return;
+        }
+        synchronized (powTableLock) {
+            if (powTablesPending) {
+                computePowTables();
+            }
+        }
+    }
+
+    /**
+     * Takes over e(g_B, g_1) and the fixed-base tables of the given Encryption Key Agent with the same g_0, ..., g_2B
+     * (the one before a rotation of the master secret), since they do not depend on the master secret. A given
+     * e(g_B, g_1) which the other Encryption Key Agent has already verified is not checked again.
+     * @param encryptionKeyAgent
+     */
+    void reusePrecomputation(EncryptionKeyAgent encryptionKeyAgent) {
+        synchronized (eElemLock) {
+            if (encryptionKeyAgent.eElemVerified && encryptionKeyAgent.eElem.isEqual(eElem)) {
+                eElemVerified = true;
+            }
+        }
+        if (!eElemVerified || encryptionKeyAgent.powTableWindowSize != powTableWindowSize) {
+            return;
+        }
+        synchronized (powTableLock) {
+            synchronized (encryptionKeyAgent.powTableLock) {
+                if (encryptionKeyAgent.gPowTable != null && encryptionKeyAgent.ePowTable != null) {
+                    gPowTable = encryptionKeyAgent.gPowTable;
+                    ePowTable = encryptionKeyAgent.ePowTable;
+                    powTablesPending = false;
+                }
+            }
+        }
+    }
+
+    private Element computeEElem() {
+        Element gBElem = publicKey.get(blockSize);
         Element g1Elem = publicKey.get(1);
-        this.eElem = pairing.pairing(gNElem, g1Elem);
+        return pairing.pairing(gBElem, g1Elem).getImmutable();
+    }
+
+    /**
+     * Checks the given e(g_B, g_1) against the public key once, before it is used for the first key.
+     */
+    private void verifyEElem() {
+        if (eElemVerified) {
+            return;
+        }
+        synchronized (eElemLock) {
+            if (!eElemVerified) {
+                if (!computeEElem().isEqual(eElem)) {
+                    throw new IllegalStateException("e(g_B, g_1) does not belong to the public key.");
+                }
+                eElemVerified = true;
+            }
+        }
+    }
+
+    private static Element pow(Element baseElem, FixedBasePowTable powTable, BigInteger exponent) {
+        if (powTable != null) {
+            return powTable.pow(exponent);
+        }
+        return baseElem.duplicate().pow(exponent);
     }
 
     /**
@@ -54,11 +283,8 @@ public class EncryptionKeyAgent {
      * @return
      */
     public EncryptionHeader getHeader() {
-        EncryptionHeader encryptionHeader = new EncryptionHeader();
-        encryptionHeader.setC0Elem(this.c0Elem);
-        encryptionHeader.setC1Elem(this.c1Elem);
-
-        return encryptionHeader;
+        Encapsulation encapsulation = currentEncapsulation;
+        return encapsulation != null ? encapsulation.getHeader() : new EncryptionHeader();
     }
 
     /**
@@ -66,7 +292,8 @@ public class EncryptionKeyAgent {
      * @return
      */
     public Element getKey() {
-        return keyElem;
+        Encapsulation encapsulation = currentEncapsulation;
+        return encapsulation != null ? encapsulation.getKey() : null;
     }
 
     /**
@@ -74,53 +301,451 @@ public class EncryptionKeyAgent {
      * @return
      */
     public byte[] getKeyBytes() {
-        return keyElem.toBytes();
+        return currentEncapsulation.getKeyBytes();
     }
 
     /**
      * This method generates a new random and creates a new session key as well as the associated header data based on
-     * the public key and the set of authorized recipients given by an array of their ids.
+     * the public key and the set of authorized recipients given by an array of their ids. The result is available via
+     * {@link #getKey()} and {@link #getHeader()} until the next call. Threads which share this Encryption Key Agent
+     * should use {@link #encapsulate(int[])} instead.
      */
     public void next(int[] ids) {
-        // Pick random t
-        Element t = pairing.getZr().newRandomElement();
+        currentEncapsulation = encapsulate(ids);
+    }
+
+    /**
+     * Same as {@link #next(int[])} for the ids of the given receiver set.
+     * @param receiverSet
+     */
+    public void next(ReceiverSet receiverSet) {
+        currentEncapsulation = encapsulate(receiverSet.ids());
+    }
+
+    /**
+     * Encapsulates a new session key for each of the given receiver sets. The receiver sets are processed in parallel
+     * on the batch executor and share the fixed-base tables and the product caches of this Encryption Key Agent. The
+     * current key and header are not changed.
+     * @param receiverSets
+     * @return Immutable list with one encapsulation per receiver set in the same order
+     */
+    public List<Encapsulation> nextBatch(List<int[]> receiverSets) {
+        long start = System.currentTimeMillis();
+
+        ExecutorService executorService = getBatchExecutor();
+        List<Future<Encapsulation>> futures = new ArrayList<Future<Encapsulation>>(receiverSets.size());
+        for (final int[] ids : receiverSets) {
+            futures.add(executorService.submit(new Callable<Encapsulation>() {
+                @Override
+                public Encapsulation call() throws Exception {
+                    return encapsulate(ids);
+                }
+            }));
+        }
+
+        List<Encapsulation> encapsulations = new ArrayList<Encapsulation>(receiverSets.size());
+        try {
+            for (Future<Encapsulation> future : futures) {
+                encapsulations.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<Encapsulation> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch encapsulation was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch encapsulation failed.", e.getCause());
+        }
+
+        log.debug("Encapsulated {} receiver sets in {}ms.", receiverSets.size(), System.currentTimeMillis() - start);
+        return Collections.unmodifiableList(encapsulations);
+    }
+
+    /**
+     * Picks a new random t and computes the session key e(g_B, g_1)^t and the header for the given receivers without
+     * changing the state of this Encryption Key Agent. Can be called by several threads at once.
+     * @param ids
+     * @return
+     */
+    public Encapsulation encapsulate(int[] ids) {
+        // Random t with K and C0 (offline part, precomputed if the randomness pool is enabled)
+        RandomnessPool randomnessPool = this.randomnessPool;
+        RandomnessPool.Randomness randomness = randomnessPool != null ? randomnessPool.take() : produceRandomness();
+        BigInteger tBigInteger = randomness.getT();
 
         /* --- Compute Key --- */
-        this.keyElem = eElem.duplicate().pow(t.toBigInteger());
+        Element keyElem = randomness.getKeyElem();
 
         /* --- Compute Header ---*/
-        Element gElem = publicKey.get(0);
-        this.c0Elem = gElem.duplicate().pow(t.toBigInteger());
+        Element c0Elem = randomness.getC0Elem();
+        EncryptionHeader header;
+
+        if (numberOfBlocks == 1) {
+            // v * prod_{j in ids} g_{n+1-j}
+            Element productElem = blockProduct(0, ids);
+            log.debug("Product cache: {}", productCaches[0]);
+
+            header = new EncryptionHeader(c0Elem, productElem.pow(tBigInteger).getImmutable());
+        } else {
+            // One C1 = (v_l * prod_{j in S_l} g_{B+1-j})^t per block l which contains receivers
+            int[] sortedIds = Arrays.copyOf(ids, ids.length);
+            Arrays.sort(sortedIds);
+
+            List<Element> c1Elems = new ArrayList<Element>();
+            int from = 0;
+            while (from < sortedIds.length) {
+                int block = Util.blockOf(sortedIds[from], blockSize);
+                int to = from;
+                while (to < sortedIds.length && Util.blockOf(sortedIds[to], blockSize) == block) {
+                    to++;
+                }
+
+                Element productElem = blockProduct(block, Arrays.copyOfRange(sortedIds, from, to));
+                c1Elems.add(productElem.pow(tBigInteger).getImmutable());
+                from = to;
+            }
+
+            header = new EncryptionHeader(c0Elem, Collections.unmodifiableList(c1Elems));
+        }
+
+        log.debug("Encryption for {} users. A total of n = {} users in {} blocks are in the system. PK size = {}.",
+                ids.length, blockSize * numberOfBlocks, numberOfBlocks, publicKey.size());
+        log.trace("C0: {}, C1: {}, IDs: {}", Arrays.hashCode(header.getC0Elem().toBytes()),
+                header.getC1Elem() != null ? Arrays.hashCode(header.getC1Elem().toBytes()) : header.getC1Elems().size(),
+                Arrays.toString(ids));
+
+        if (rangeMode) {
+            header.setRanges(ReceiverSet.of(ids).toRanges());
+        }
+
+        return new Encapsulation(ids, header, keyElem);
+    }
+
+    /**
+     * Returns v_l * prod_{j in ids} g_{B+1-j} for the given receivers of block l. In range mode the product of receivers
+     * which form few ranges is computed with one multiplication and one division per range.
+     */
+    private Element blockProduct(int block, int[] blockIds) {
+        if (rangeMode) {
+            int[] sortedIds = Arrays.copyOf(blockIds, blockIds.length);
+            Arrays.sort(sortedIds);
+
+            if (2 * ReceiverSet.numberOfRanges(sortedIds) < sortedIds.length) {
+                PrefixProductTable rangeTable = rangeTable();
+                Element productElem = publicKey.get(2 * blockSize + 1 + block).duplicate();
+                int[] ranges = ReceiverSet.ranges(sortedIds);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    productElem.mul(rangeTable.range(Util.localId(ranges[i], blockSize),
+                            Util.localId(ranges[i + 1], blockSize)));
+                }
+                return productElem;
+            }
+        }
+
+        return productCaches[block].product(blockIds);
+    }
+
+    /**
+     * Returns the prefix products of g_{B+1-j} for the local ids j = 1, ..., B (the same for all blocks).
+     */
+    private PrefixProductTable rangeTable() {
+        PrefixProductTable rangeTable = this.rangeTable;
+        if (rangeTable == null) {
+            synchronized (rangeTableLock) {
+                rangeTable = this.rangeTable;
+                if (rangeTable == null) {
+                    rangeTable = new PrefixProductTable(pairing.getG1(), blockSize,
+                            PrefixProductTable.DEFAULT_MAXIMUM_ELEMENTS) {
+                        @Override
+                        protected Element factorElement(int localId) {
+                            return publicKey.get(blockSize + 1 - localId);
+                        }
+                    };
+                    this.rangeTable = rangeTable;
+                }
+            }
+        }
+        return rangeTable;
+    }
+
+    /**
+     * Same as {@link #encapsulate(int[])} for the ids of the given receiver set.
+     * @param receiverSet
+     * @return
+     */
+    public Encapsulation encapsulate(ReceiverSet receiverSet) {
+        return encapsulate(receiverSet.ids());
+    }
+
+    /**
+     * Picks a new random t and computes the key e(g_B, g_1)^t and C0 = g^t.
+     */
+    private RandomnessPool.Randomness produceRandomness() {
+        verifyEElem();
+        computePendingPowTables();
+
+        Element t = pairing.getZr().newRandomElement();
+        BigInteger tBigInteger = t.toBigInteger();
+
+        Element keyElem = pow(eElem, ePowTable, tBigInteger);
+        Element c0Elem = pow(publicKey.get(0), gPowTable, tBigInteger);
+
+        return new RandomnessPool.Randomness(tBigInteger, c0Elem, keyElem);
+    }
+
+    /**
+     * Starts a refill thread which precomputes t, C0 and the key of up to depth encapsulations, so that encapsulate
+     * only has to compute C1. Replaces a running randomness pool.
+     * @param depth
+     */
+    public synchronized void enableRandomnessPool(int depth) {
+        disableRandomnessPool();
+
+        RandomnessPool randomnessPool = new RandomnessPool(depth) {
+            @Override
+            protected Randomness produce() {
+                return produceRandomness();
+            }
+        };
+        randomnessPool.start();
+        this.randomnessPool = randomnessPool;
+    }
+
+    /**
+     * Stops the refill thread of the randomness pool. Afterwards the randomness is computed by encapsulate.
+     */
+    public synchronized void disableRandomnessPool() {
+        if (randomnessPool != null) {
+            randomnessPool.stop();
+            randomnessPool = null;
+        }
+    }
+
+    /**
+     * Returns the randomness pool which also holds the starvation counters or null if it is not enabled.
+     * @return
+     */
+    public RandomnessPool getRandomnessPool() {
+        return randomnessPool;
+    }
+
+    /**
+     * Returns the executor of {@link #nextBatch(List)}. Unless another executor was set, a shared pool with one daemon
+     * thread per processor is used.
+     * @return
+     */
+    public ExecutorService getBatchExecutor() {
+        if (batchExecutor != null) {
+            return batchExecutor;
+        }
+
+        synchronized (EncryptionKeyAgent.class) {
+            if (defaultBatchExecutor == null) {
+                defaultBatchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        new ThreadFactory() {
+                            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "eka-batch-" + threadNumber.getAndIncrement());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+            }
+            return defaultBatchExecutor;
+        }
+    }
+
+    /**
+     * Sets the executor of {@link #nextBatch(List)}, null selects the shared default pool.
+     * @param batchExecutor
+     */
+    public void setBatchExecutor(ExecutorService batchExecutor) {
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Returns the cache of receiver set products of the given block which also holds the hit and miss counters.
+     * @param block
+     * @return
+     */
+    public ReceiverSetProductCache getProductCache(int block) {
+        return productCaches[block];
+    }
 
-        // vElem is the last element of the public key
-        Element vElem = publicKey.get(publicKey.size()-1);
+    /**
+     * Sets the maximum number of receiver sets per block whose products are cached, 0 disables the cache.
+     * @param productCacheSize
+     */
+    public void setProductCacheSize(int productCacheSize) {
+        for (ReceiverSetProductCache productCache : productCaches) {
+            productCache.setMaximumSize(productCacheSize);
+        }
+    }
+
+    public int getProductCacheSize() {
+        int size = 0;
+        for (ReceiverSetProductCache productCache : productCaches) {
+            size += productCache.size();
+        }
+        return size;
+    }
 
-        Element productElem = vElem.duplicate();
+    public double getProductCacheHitRate() {
+        long hits = 0;
+        long lookups = 0;
+        for (ReceiverSetProductCache productCache : productCaches) {
+            hits += productCache.getHits() + productCache.getDeltaHits();
+            lookups += productCache.getHits() + productCache.getDeltaHits() + productCache.getMisses();
+        }
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
 
-        for (int i = 0; i < ids.length; i++) {
-            log.debug("Multiply g_{} to product.", n+1-ids[i]);
+    /**
+     * Sets the receiver sets this Encryption Key Agent encrypts to repeatedly (e.g. floors, buildings or device
+     * classes), so that the products of C1 share common sub-products. Other receiver sets still use the product
+     * cache.
+     * @param receiverSets Active receiver sets or null to remove them
+     */
+    public void setActiveReceiverSets(Collection<ReceiverSet> receiverSets) {
+        for (int block = 0; block < numberOfBlocks; block++) {
+            List<ReceiverSet> blockReceiverSets = new ArrayList<ReceiverSet>();
+            if (receiverSets != null) {
+                for (ReceiverSet receiverSet : receiverSets) {
+                    ReceiverSet blockReceiverSet = numberOfBlocks == 1 ? receiverSet : receiversOfBlock(receiverSet, block);
+                    if (!blockReceiverSet.isEmpty()) {
+                        blockReceiverSets.add(blockReceiverSet);
+                    }
+                }
+            }
+            productCaches[block].setSharedReceiverSets(blockReceiverSets);
+        }
+    }
 
-            int k = n+1-ids[i];
-            log.debug("n={}, id={}, k={}", n, ids[i], k);
-            productElem.mul(publicKey.get(k));
+    private ReceiverSet receiversOfBlock(ReceiverSet receiverSet, int block) {
+        List<Integer> blockIds = new ArrayList<Integer>();
+        for (int id : receiverSet.ids()) {
+            if (Util.blockOf(id, blockSize) == block) {
+                blockIds.add(id);
+            }
         }
+        return ReceiverSet.of(blockIds);
+    }
+
+    public boolean isRangeMode() {
+        return rangeMode;
+    }
+
+    /**
+     * Enables the range mode: the receivers of each header are encoded as ranges (see {@link ReceiverSet#toRanges()})
+     * and the products of receiver sets which consist of few ranges (e.g. all sensors 100-900) are computed from a
+     * table of prefix products, which costs one multiplication and one division per range instead of one
+     * multiplication per receiver. The table is built on first use and keeps at most
+     * {@link PrefixProductTable#DEFAULT_MAXIMUM_ELEMENTS} prefix products.
+     * @param rangeMode
+     */
+    public void setRangeMode(boolean rangeMode) {
+        this.rangeMode = rangeMode;
+    }
 
-        this.c1Elem = productElem.pow(t.toBigInteger());
+    /**
+     * Returns the table of prefix products of the range mode or null if it is not built yet.
+     * @return
+     */
+    public PrefixProductTable getRangeTable() {
+        return rangeTable;
+    }
 
-        log.debug("Encryption for {} users. A total of n = {} users are in the system. PK size = {}.", ids.length, n, publicKey.size());
-        log.trace("C0: {}, C1: {}, IDs: {}", Arrays.hashCode(this.c0Elem.toBytes()), Arrays.hashCode(this.c1Elem.toBytes()), Arrays.toString(ids));
+    /**
+     * Returns the number of G1 multiplications the shared sub-products of the active receiver sets saved.
+     * @return
+     */
+    public long getMultiplicationsSaved() {
+        long multiplicationsSaved = 0;
+        for (ReceiverSetProductCache productCache : productCaches) {
+            SharedProductEngine sharedProductEngine = productCache.getSharedProductEngine();
+            if (sharedProductEngine != null) {
+                multiplicationsSaved += sharedProductEngine.getMultiplicationsSaved();
+            }
+        }
+        return multiplicationsSaved;
     }
 
     public boolean validate(long timestamp) {
         return validNotBefore <= timestamp && timestamp <= validNotAfter;
     }
 
+    public Pairing getPairing() {
+        return pairing;
+    }
+
+    /**
+     * Returns e(g_B, g_1), which is not verified yet if it was given to the constructor and no key was computed.
+     * @return
+     */
+    public Element getEElem() {
+        return eElem;
+    }
+
     public List<Element> getPublicKey() {
         return publicKey;
     }
 
-    public void setPublicKey(List<Element> publicKey) {
+    public synchronized void setPublicKey(List<Element> publicKey) {
+        PairingRegistry.checkPublicKey(pairing, publicKey);
         this.publicKey = publicKey;
+        for (ReceiverSetProductCache productCache : productCaches) {
+            productCache.clear();
+        }
+        this.rangeTable = null;
+
+        // e(g_B, g_1) and the fixed-base tables belong to the previous public key, the tables are rebuilt with the
+        // next key
+        synchronized (eElemLock) {
+            this.eElem = computeEElem();
+            this.eElemVerified = true;
+        }
+        synchronized (powTableLock) {
+            this.gPowTable = null;
+            this.ePowTable = null;
+            this.powTablesPending = powTableWindowSize > 0;
+        }
+
+        // Discard randomness which was precomputed with the previous g and e(g_B, g_1)
+        RandomnessPool randomnessPool = this.randomnessPool;
+        if (randomnessPool != null) {
+            enableRandomnessPool(randomnessPool.getDepth());
+        }
+    }
+
+    /**
+     * Returns the window size of the fixed-base tables, 0 if they are disabled.
+     * @return
+     */
+    public int getPowTableWindowSize() {
+        return powTableWindowSize;
+    }
+
+    /**
+     * Returns true if the fixed-base tables for g and e(g_B, g_1) are built.
+     * @return
+     */
+    public boolean hasPowTables() {
+        return gPowTable != null && ePowTable != null;
+    }
+
+    /**
+     * Returns the number of ids per block (n in the basic scheme).
+     * @return
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getNumberOfBlocks() {
+        return numberOfBlocks;
     }
 
     public long getValidNotBefore() {
@@ -146,7 +771,7 @@ public class EncryptionKeyAgent {
 
         EncryptionKeyAgent that = (EncryptionKeyAgent) o;
 
-        // Compare second and last element of public key (g^a and v)
+        // Compare second and last element of public key (g^a and v or v_A)
         if (!publicKey.get(publicKey.size()-1).isEqual(that.getPublicKey().get(publicKey.size()-1))) return false;
         return publicKey.get(1).isEqual(that.getPublicKey().get(1));
     }
@@ -0,0 +1,94 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+import java.math.BigInteger;
+
+/**
+ * Precomputed table for exponentiations with a fixed base. The exponent is split into windows of windowSize bits and
+ * for each window all 2^windowSize powers of the base are stored, so that an exponentiation only needs one
+ * multiplication per window and no squarings.
+ *
+ * A larger window size needs less multiplications per exponentiation but the table grows with
+ * bits / windowSize * 2^windowSize elements.
+ */
+public class FixedBasePowTable {
+
+    private Element base;
+    private int bits;
+    private int windowSize;
+    private Element[][] table;
+
+    /**
+     * Build the table for the given base.
+     * @param base
+     * @param bits Maximum number of bits of the exponents (e.g. bit length of the group order)
+     * @param windowSize Number of exponent bits handled by one table lookup
+     */
+    public FixedBasePowTable(Element base, int bits, int windowSize) {
+        if (windowSize < 1 || windowSize > 16) {
+            throw new IllegalArgumentException("Window size must be between 1 and 16.");
+        }
+
+        this.base = base.getImmutable();
+        this.bits = bits;
+        this.windowSize = windowSize;
+
+        int numberOfWindows = (bits + windowSize - 1) / windowSize;
+        int windowValues = 1 << windowSize;
+        table = new Element[numberOfWindows][windowValues];
+
+        // multiplierElem = base^(2^(i*windowSize)) for window i
+        Element multiplierElem = base.duplicate();
+        for (int i = 0; i < numberOfWindows; i++) {
+            table[i][0] = base.getField().newOneElement().getImmutable();
+            Element powElem = base.getField().newOneElement();
+            for (int j = 1; j < windowValues; j++) {
+                powElem.mul(multiplierElem);
+                table[i][j] = powElem.getImmutable();
+            }
+            multiplierElem = powElem.mul(multiplierElem);
+        }
+    }
+
+    /**
+     * Returns a new element base^exponent.
+     * @param exponent
+     * @return
+     */
+    public Element pow(BigInteger exponent) {
+        if (exponent.signum() < 0 || exponent.bitLength() > bits) {
+            return base.duplicate().pow(exponent);
+        }
+
+        Element resultElem = base.getField().newOneElement();
+        for (int i = 0; i < table.length; i++) {
+            int value = 0;
+            for (int b = windowSize - 1; b >= 0; b--) {
+                value = (value << 1) | (exponent.testBit(i * windowSize + b) ? 1 : 0);
+            }
+
+            if (value != 0) {
+                resultElem.mul(table[i][value]);
+            }
+        }
+
+        return resultElem;
+    }
+
+    public Element getBase() {
+        return base;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Returns the number of precomputed elements which are held by this table.
+     * @return
+     */
+    public int getNumberOfElements() {
+        return table.length * (1 << windowSize);
+    }
+}
@@ -0,0 +1,48 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingParameters;
+import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
+
+/**
+ * Pure Java implementation of jPBC which is always available.
+ */
+public class JpbcPairingBackend implements PairingBackend {
+
+    public static final String NAME = "jpbc";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Pairing createPairing(PairingParameters pairingParameters) {
+        return createPairing(pairingParameters, false);
+    }
+
+    /**
+     * Creates a pairing with the shared PairingFactory. The factory is configured for this call only, so that it
+     * neither returns a pairing of the other implementation nor keeps the pairing.
+     */
+    static Pairing createPairing(PairingParameters pairingParameters, boolean usePBC) {
+        PairingFactory pairingFactory = PairingFactory.getInstance();
+        synchronized (pairingFactory) {
+            boolean usePBCWhenPossible = pairingFactory.isUsePBCWhenPossible();
+            boolean reuseInstance = pairingFactory.isReuseInstance();
+            try {
+                pairingFactory.setUsePBCWhenPossible(usePBC);
+                pairingFactory.setReuseInstance(false);
+                return pairingFactory.initPairing(pairingParameters);
+            } finally {
+                pairingFactory.setUsePBCWhenPossible(usePBCWhenPossible);
+                pairingFactory.setReuseInstance(reuseInstance);
+            }
+        }
+    }
+}
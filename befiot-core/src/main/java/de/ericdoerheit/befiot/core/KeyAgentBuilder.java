@@ -6,7 +6,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Created by ericdorheit on 02/02/16.
@@ -14,6 +21,9 @@ import java.util.List;
 public class KeyAgentBuilder {
     private static final Logger log = LoggerFactory.getLogger(KeyAgentBuilder.class);
 
+    // Decryption Key Agents computed ahead of the consumer per processor by getDecryptionKeyAgents
+    private static final int DECRYPTION_KEY_AGENTS_AHEAD_PER_THREAD = 4;
+
     private long validNotBefore;
     private long validNotAfter;
 
@@ -25,6 +35,10 @@ public class KeyAgentBuilder {
     private Element vElem;
     private Element mskElem;
 
+    // Partitioned scheme: number of ids per block B (0 for the basic scheme) and gamma_1, ..., gamma_A of the blocks
+    private int blockSize;
+    private List<Element> mskElems;
+
     private EncryptionKeyAgent encryptionKeyAgent;
 
     /**
@@ -48,6 +62,36 @@ public class KeyAgentBuilder {
         computeEncryptionKeyAgent();
     }
 
+    /**
+     * Initialize Key Agent Builder of the partitioned scheme with random parameters. The ids are split into
+     * A = ceil(n / B) blocks of B ids, so that the public key has 2B + 1 + A instead of 2n + 2 elements (B = sqrt(n)
+     * minimizes it) while the header contains one C1 for each block with receivers.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param maximumNumberOfDecryptionKeyAgents
+     * @param blockSize Number of ids per block B
+     */
+    public KeyAgentBuilder(long validNotBefore, long validNotAfter, Pairing pairing, int maximumNumberOfDecryptionKeyAgents, int blockSize) {
+        this.validNotBefore = validNotBefore;
+        this.validNotAfter = validNotAfter;
+        this.pairing = pairing;
+        this.maximumNumberOfDecryptionKeyAgents = maximumNumberOfDecryptionKeyAgents;
+        this.blockSize = blockSize;
+
+        aElem = pairing.getZr().newRandomElement();
+        gElem = pairing.getG1().newRandomElement();
+
+        mskElems = new ArrayList<Element>();
+        for (int block = 0; block < Util.numberOfBlocks(maximumNumberOfDecryptionKeyAgents, blockSize); block++) {
+            mskElems.add(pairing.getZr().newRandomElement());
+        }
+        mskElem = mskElems.get(0);
+        vElem = gElem.duplicate().pow(mskElem.toBigInteger());
+
+        computeEncryptionKeyAgent();
+    }
+
     /**
      * Initialize Key Agent Builder based on given parameters.
      * @param validNotBefore
@@ -73,19 +117,235 @@ public class KeyAgentBuilder {
         computeEncryptionKeyAgent();
     }
 
+    /**
+     * Initialize Key Agent Builder based on given parameters and the already generated sequence g_0, ..., g_2n of the
+     * public key (e.g. a {@link PublicKeyFile} generated by the {@link PublicKeyFileGenerator}), so that it is not
+     * generated again.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param maximumNumberOfDecryptionKeyAgents
+     * @param aElem
+     * @param gElem
+     * @param mskElem
+     * @param gIElems g_0, ..., g_2n which must belong to aElem and gElem
+     */
+    public KeyAgentBuilder(long validNotBefore, long validNotAfter, Pairing pairing, int maximumNumberOfDecryptionKeyAgents, Element aElem, Element gElem, Element mskElem, List<Element> gIElems) {
+        if (gIElems.size() != 2 * maximumNumberOfDecryptionKeyAgents + 1) {
+            throw new IllegalArgumentException("The public key must contain 2n+1 elements g_0, ..., g_2n.");
+        }
+        if (!gIElems.get(0).isEqual(gElem) || !gIElems.get(1).isEqual(gElem.duplicate().pow(aElem.toBigInteger()))) {
+            throw new IllegalArgumentException("The public key does not belong to the given parameters.");
+        }
+
+        this.validNotBefore = validNotBefore;
+        this.validNotAfter = validNotAfter;
+        this.pairing = pairing;
+        this.maximumNumberOfDecryptionKeyAgents = maximumNumberOfDecryptionKeyAgents;
+
+        this.aElem = aElem;
+        this.gElem = gElem;
+        this.mskElem = mskElem;
+
+        this.vElem = gElem.duplicate().pow(mskElem.toBigInteger());
+
+        this.encryptionKeyAgent = createEncryptionKeyAgent(gIElems instanceof LazyPublicKey
+                ? gIElems : new ArrayList<Element>(gIElems), vElem, mskElems, validNotBefore, validNotAfter, null);
+    }
+
+    /**
+     * Initialize Key Agent Builder of the partitioned scheme based on given parameters.
+     * @param validNotBefore
+     * @param validNotAfter
+     * @param pairing
+     * @param maximumNumberOfDecryptionKeyAgents
+     * @param blockSize Number of ids per block B
+     * @param aElem
+     * @param gElem
+     * @param mskElems gamma_1, ..., gamma_A of the blocks
+     */
+    public KeyAgentBuilder(long validNotBefore, long validNotAfter, Pairing pairing, int maximumNumberOfDecryptionKeyAgents, int blockSize, Element aElem, Element gElem, List<Element> mskElems) {
+        this.validNotBefore = validNotBefore;
+        this.validNotAfter = validNotAfter;
+        this.pairing = pairing;
+        this.maximumNumberOfDecryptionKeyAgents = maximumNumberOfDecryptionKeyAgents;
+        this.blockSize = blockSize;
+
+        this.aElem = aElem;
+        this.gElem = gElem;
+        this.mskElems = mskElems;
+        this.mskElem = mskElems.get(0);
+
+        this.vElem = gElem.duplicate().pow(mskElem.toBigInteger());
+
+        computeEncryptionKeyAgent();
+    }
+
+    /**
+     * Replaces the master secret (gamma_1, ..., gamma_A in the partitioned scheme) by a new random one. Since only
+     * v = g^msk and the private keys d_i = g_i^msk depend on it, the sequence g_0, ..., g_2n of the public key is kept
+     * and only the Encryption Key Agent is recreated. Decryption Key Agents of the previous master secret can not
+     * decrypt keys of the new Encryption Key Agent.
+     *
+     * The new state is computed first and then published at once while holding the lock of this Key Agent Builder,
+     * so that concurrent callers never combine the new master secret with the previous public key or validity.
+     * Callers which read several properties (e.g. to serialize the Key Agent Builder) synchronize on it as well.
+     * @param validNotBefore Start of the validity of the rotated key agents
+     * @param validNotAfter End of the validity of the rotated key agents
+     */
+    public void rotateMasterSecret(long validNotBefore, long validNotAfter) {
+        long start = System.currentTimeMillis();
+
+        // g_0, ..., g_2B without v (or v_1, ..., v_A)
+        EncryptionKeyAgent previousEncryptionKeyAgent = getEncryptionKeyAgent();
+        List<Element> publicKey = previousEncryptionKeyAgent.getPublicKey();
+        int blockSize = previousEncryptionKeyAgent.getBlockSize();
+        List<Element> gIElems = publicKey instanceof LazyPublicKey
+                ? ((LazyPublicKey) publicKey).withElements(2 * blockSize + 1, new ArrayList<Element>())
+                : new ArrayList<Element>(publicKey.subList(0, 2 * blockSize + 1));
+
+        List<Element> mskElems = null;
+        Element mskElem;
+        if (isPartitioned()) {
+            mskElems = new ArrayList<Element>();
+            for (int block = 0; block < previousEncryptionKeyAgent.getNumberOfBlocks(); block++) {
+                mskElems.add(pairing.getZr().newRandomElement());
+            }
+            mskElem = mskElems.get(0);
+        } else {
+            mskElem = pairing.getZr().newRandomElement();
+        }
+        Element vElem = gElem.duplicate().pow(mskElem.toBigInteger());
+
+        // e(g_B, g_1) and the fixed-base tables only depend on g_0, ..., g_2B and are taken over
+        EncryptionKeyAgent encryptionKeyAgent = createEncryptionKeyAgent(gIElems, vElem, mskElems, validNotBefore,
+                validNotAfter, previousEncryptionKeyAgent);
+
+        synchronized (this) {
+            this.validNotBefore = validNotBefore;
+            this.validNotAfter = validNotAfter;
+            this.mskElems = mskElems;
+            this.mskElem = mskElem;
+            this.vElem = vElem;
+            this.encryptionKeyAgent = encryptionKeyAgent;
+        }
+
+        log.debug("Rotated master secret in {}ms.", System.currentTimeMillis() - start);
+    }
+
     /**
      * Create and return a Decryption Key Agent based on the given id.
      * @param id
      * @return
      */
     public DecryptionKeyAgent getDecryptionKeyAgent(int id) {
+        // Snapshot of the master secret and the public key
+        EncryptionKeyAgent encryptionKeyAgent;
+        Element mskElem;
+        List<Element> mskElems;
+        long validNotBefore;
+        long validNotAfter;
+        synchronized (this) {
+            encryptionKeyAgent = this.encryptionKeyAgent;
+            mskElem = this.mskElem;
+            mskElems = this.mskElems;
+            validNotBefore = this.validNotBefore;
+            validNotAfter = this.validNotAfter;
+        }
+        return computeDecryptionKeyAgent(id, encryptionKeyAgent, mskElem, mskElems, validNotBefore, validNotAfter);
+    }
+
+    /**
+     * Returns the Decryption Key Agents of the ids fromId, ..., toId in id order. The private keys are computed in
+     * parallel on the batch executor of the Encryption Key Agent while the iterator is consumed, at most a few per
+     * processor ahead of the consumer, so the memory does not grow with the number of ids. All Decryption Key Agents
+     * share the public key of the current Encryption Key Agent, a later rotation of the master secret does not
+     * affect the iterator.
+     * @param fromId First id (inclusive)
+     * @param toId Last id (inclusive)
+     * @return
+     */
+    public Iterator<DecryptionKeyAgent> getDecryptionKeyAgents(final int fromId, final int toId) {
+        if (fromId < 1 || toId > maximumNumberOfDecryptionKeyAgents || fromId > toId) {
+            throw new IllegalArgumentException("Ids must be a range within 1, ..., " + maximumNumberOfDecryptionKeyAgents + ".");
+        }
+
+        // Snapshot of the master secret and the public key
+        final EncryptionKeyAgent encryptionKeyAgent;
+        final Element mskElem;
+        final List<Element> mskElems;
+        final long validNotBefore;
+        final long validNotAfter;
+        synchronized (this) {
+            encryptionKeyAgent = this.encryptionKeyAgent;
+            mskElem = this.mskElem;
+            mskElems = this.mskElems;
+            validNotBefore = this.validNotBefore;
+            validNotAfter = this.validNotAfter;
+        }
+
+        final ExecutorService executorService = encryptionKeyAgent.getBatchExecutor();
+        final int ahead = Runtime.getRuntime().availableProcessors() * DECRYPTION_KEY_AGENTS_AHEAD_PER_THREAD;
+
+        return new Iterator<DecryptionKeyAgent>() {
+            private final LinkedList<Future<DecryptionKeyAgent>> futures = new LinkedList<Future<DecryptionKeyAgent>>();
+            private int nextSubmittedId = fromId;
+
+            @Override
+            public boolean hasNext() {
+                return !futures.isEmpty() || nextSubmittedId <= toId;
+            }
+
+            @Override
+            public DecryptionKeyAgent next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                while (futures.size() < ahead && nextSubmittedId <= toId) {
+                    final int id = nextSubmittedId++;
+                    futures.add(executorService.submit(new Callable<DecryptionKeyAgent>() {
+                        @Override
+                        public DecryptionKeyAgent call() throws Exception {
+                            return computeDecryptionKeyAgent(id, encryptionKeyAgent, mskElem, mskElems,
+                                    validNotBefore, validNotAfter);
+                        }
+                    }));
+                }
+
+                try {
+                    return futures.removeFirst().get();
+                } catch (InterruptedException e) {
+                    for (Future<DecryptionKeyAgent> future : futures) {
+                        future.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Computation of Decryption Key Agents was interrupted.", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Computation of Decryption Key Agents failed.", e.getCause());
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * d_id = g_b^(gamma_l) where l is the block of the id and b the id within the block (l = 0, b = id if basic)
+     */
+    private DecryptionKeyAgent computeDecryptionKeyAgent(int id, EncryptionKeyAgent encryptionKeyAgent, Element mskElem,
+                                                         List<Element> mskElems, long validNotBefore, long validNotAfter) {
         List<Element> publicKey = encryptionKeyAgent.getPublicKey();
-        Element gIElem = publicKey.get(id);
-        Element dIElem = gIElem.duplicate().pow(mskElem.toBigInteger());
 
-        DecryptionKeyAgent decryptionKeyAgent = new DecryptionKeyAgent(validNotBefore, validNotAfter, pairing, id, dIElem, publicKey);
+        int blockSize = encryptionKeyAgent.getBlockSize();
+        Element gIElem = publicKey.get(Util.localId(id, blockSize));
+        Element blockMskElem = isPartitioned() ? mskElems.get(Util.blockOf(id, blockSize)) : mskElem;
+        Element dIElem = gIElem.duplicate().pow(blockMskElem.toBigInteger());
 
-        return decryptionKeyAgent;
+        return new DecryptionKeyAgent(validNotBefore, validNotAfter, pairing, id, dIElem, publicKey, this.blockSize);
     }
 
     /**
@@ -93,7 +353,7 @@ public class KeyAgentBuilder {
      * encryption system.
      * @return
      */
-    public EncryptionKeyAgent getEncryptionKeyAgent() {
+    public synchronized EncryptionKeyAgent getEncryptionKeyAgent() {
         return encryptionKeyAgent;
     }
 
@@ -101,51 +361,82 @@ public class KeyAgentBuilder {
      * Computes the Encryption Key Agent of this Key Agent Builder
      */
     private void computeEncryptionKeyAgent() {
-        int n = this.maximumNumberOfDecryptionKeyAgents;
-
-        ArrayList<Element> publicKey = new ArrayList<Element>(2*n+2);
+        if (!pairing.isSymmetric()) {
+            throw new IllegalArgumentException("Broadcast encryption needs a symmetric pairing (Type A or E).");
+        }
 
-        // Add g_0 = g^(a^0) = g^1 = g
-        publicKey.add(gElem.duplicate());
+        // g_0, ..., g_2n (g_{n+1} is the zero element) or g_0, ..., g_2B in the partitioned scheme
+        int n = isPartitioned() ? blockSize : this.maximumNumberOfDecryptionKeyAgents;
+        List<Element> gIElems = new PublicKeyGenerator(pairing).generate(gElem, aElem, n);
 
-        Element gIElem = gElem.duplicate();
-        for(int i = 1; i <= 2*n; i++) {
-            gIElem.pow(aElem.toBigInteger());
+        this.encryptionKeyAgent = createEncryptionKeyAgent(gIElems, vElem, mskElems, validNotBefore, validNotAfter,
+                null);
+    }
 
-            if(i != n+1) {
-                // Add g_i = g^(a^i)
-                publicKey.add(gIElem.duplicate());
-            } else {
-                // Add zeroElement for g_{n+1} so that the indexes of the array are the same as the ids
-                publicKey.add(pairing.getG1().newZeroElement());
+    /**
+     * Creates the Encryption Key Agent for the given g_0, ..., g_2n by appending v (v_1, ..., v_A in the partitioned
+     * scheme) which depends on the master secret. If an Encryption Key Agent with the same g_0, ..., g_2n is given
+     * (the one before a rotation), its e(g_B, g_1) and fixed-base tables are reused instead of being computed again.
+     */
+    private EncryptionKeyAgent createEncryptionKeyAgent(List<Element> gIElems, Element vElem, List<Element> mskElems,
+                                                        long validNotBefore, long validNotAfter,
+                                                        EncryptionKeyAgent previousEncryptionKeyAgent) {
+        List<Element> vElems = new ArrayList<Element>();
+        if (!isPartitioned()) {
+            vElems.add(vElem);
+        } else {
+            // v_1, ..., v_A with v_l = g^(gamma_l)
+            for (Element blockMskElem : mskElems) {
+                vElems.add(gElem.duplicate().pow(blockMskElem.toBigInteger()));
             }
         }
 
-        publicKey.add(vElem);
+        List<Element> publicKey;
+        if (gIElems instanceof LazyPublicKey) {
+            // Keep a public key which is read from a file lazy
+            publicKey = ((LazyPublicKey) gIElems).withElements(gIElems.size(), vElems);
+        } else {
+            publicKey = gIElems;
+            publicKey.addAll(vElems);
+        }
 
-        this.encryptionKeyAgent = new EncryptionKeyAgent(validNotBefore, validNotAfter, pairing, publicKey);
+        if (previousEncryptionKeyAgent != null) {
+            EncryptionKeyAgent encryptionKeyAgent = new EncryptionKeyAgent(validNotBefore, validNotAfter, pairing,
+                    publicKey, isPartitioned() ? blockSize : 0, previousEncryptionKeyAgent.getEElem(),
+                    previousEncryptionKeyAgent.getPowTableWindowSize(), false);
+            encryptionKeyAgent.reusePrecomputation(previousEncryptionKeyAgent);
+            return encryptionKeyAgent;
+        }
+        if (!isPartitioned()) {
+            return new EncryptionKeyAgent(validNotBefore, validNotAfter, pairing, publicKey);
+        }
+        return new EncryptionKeyAgent(validNotBefore, validNotAfter, pairing, publicKey, blockSize);
     }
 
-    public boolean validate(long timestamp) {
+    public synchronized boolean validate(long timestamp) {
         return validNotBefore <= timestamp && timestamp <= validNotAfter;
     }
 
-    public long getValidNotBefore() {
+    public synchronized long getValidNotBefore() {
         return validNotBefore;
     }
 
-    public void setValidNotBefore(long validNotBefore) {
+    public synchronized void setValidNotBefore(long validNotBefore) {
         this.validNotBefore = validNotBefore;
     }
 
-    public long getValidNotAfter() {
+    public synchronized long getValidNotAfter() {
         return validNotAfter;
     }
 
-    public void setValidNotAfter(long validNotAfter) {
+    public synchronized void setValidNotAfter(long validNotAfter) {
         this.validNotAfter = validNotAfter;
     }
 
+    public Pairing getPairing() {
+        return pairing;
+    }
+
     public int getMaximumNumberOfDecryptionKeyAgents() {
         return maximumNumberOfDecryptionKeyAgents;
     }
@@ -158,10 +449,22 @@ public class KeyAgentBuilder {
         return gElem;
     }
 
-    public Element getMskElem() {
+    public synchronized Element getMskElem() {
         return mskElem;
     }
 
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized List<Element> getMskElems() {
+        return mskElems;
+    }
+
+    public boolean isPartitioned() {
+        return blockSize > 0;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -171,6 +474,13 @@ public class KeyAgentBuilder {
 
         if (!aElem.isEqual(that.aElem)) return false;
         if (!gElem.isEqual(that.gElem)) return false;
+        if (blockSize != that.blockSize) return false;
+        if (isPartitioned()) {
+            if (mskElems.size() != that.mskElems.size()) return false;
+            for (int i = 0; i < mskElems.size(); i++) {
+                if (!mskElems.get(i).isEqual(that.mskElems.get(i))) return false;
+            }
+        }
         return mskElem.isEqual(that.mskElem);
     }
 }
@@ -0,0 +1,193 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Public key which keeps the serialized elements and decodes an element on its first access. In the default mode every
+ * decoded element is kept. In compact mode only a bounded number of recently used elements is kept and evicted
+ * elements are decoded again on their next access.
+ *
+ * The returned elements are shared and must not be modified (use {@link Element#duplicate()}).
+ */
+public class LazyPublicKey extends AbstractList<Element> {
+
+    public static final int UNBOUNDED = -1;
+
+    private final Field field;
+    private final List<byte[]> elementBytes;
+    private final int formatVersion;
+    private final int maximumCachedElements;
+
+    // Decoded elements in default mode
+    private final AtomicReferenceArray<Element> elements;
+
+    // Recently used decoded elements in compact mode
+    private final LinkedHashMap<Integer, Element> recentElements;
+
+    /**
+     * Public key which keeps every decoded element.
+     * @param field
+     * @param elementBytes
+     */
+    public LazyPublicKey(Field field, List<byte[]> elementBytes) {
+        this(field, elementBytes, ElementEncoding.UNCOMPRESSED, UNBOUNDED);
+    }
+
+    /**
+     * @param field Field of the public key elements (G1)
+     * @param elementBytes Serialized elements
+     * @param formatVersion Encoding of the serialized elements (see {@link ElementEncoding})
+     * @param maximumCachedElements Maximum number of decoded elements which are kept (compact mode) or
+     *                              {@link #UNBOUNDED}
+     */
+    public LazyPublicKey(Field field, List<byte[]> elementBytes, int formatVersion, final int maximumCachedElements) {
+        this.field = field;
+        this.elementBytes = elementBytes;
+        this.formatVersion = formatVersion;
+        this.maximumCachedElements = maximumCachedElements;
+
+        if (maximumCachedElements == UNBOUNDED) {
+            this.elements = new AtomicReferenceArray<Element>(elementBytes.size());
+            this.recentElements = null;
+        } else {
+            this.elements = null;
+            this.recentElements = new LinkedHashMap<Integer, Element>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Element> eldest) {
+                    return size() > maximumCachedElements;
+                }
+            };
+        }
+    }
+
+    @Override
+    public Element get(int index) {
+        if (elements != null) {
+            Element element = elements.get(index);
+            if (element == null) {
+                element = decode(index);
+                elements.set(index, element);
+            }
+            return element;
+        }
+
+        synchronized (recentElements) {
+            Element element = recentElements.get(index);
+            if (element == null) {
+                element = decode(index);
+                recentElements.put(index, element);
+            }
+            return element;
+        }
+    }
+
+    private Element decode(int index) {
+        return ElementEncoding.fromBytes(field, elementBytes.get(index), formatVersion).getImmutable();
+    }
+
+    /**
+     * Returns a public key with the first count serialized elements of this public key followed by the given elements,
+     * without decoding the elements of this public key (e.g. to replace v after a rotation of the master secret).
+     * @param count
+     * @param appendedElements
+     * @return
+     */
+    public LazyPublicKey withElements(final int count, List<Element> appendedElements) {
+        final List<byte[]> appendedBytes = new ArrayList<byte[]>(appendedElements.size());
+        for (Element element : appendedElements) {
+            appendedBytes.add(ElementEncoding.toBytes(element, formatVersion));
+        }
+
+        return new LazyPublicKey(field, new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int index) {
+                return index < count ? elementBytes.get(index) : appendedBytes.get(index - count);
+            }
+
+            @Override
+            public int size() {
+                return count + appendedBytes.size();
+            }
+        }, formatVersion, maximumCachedElements);
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Returns the serialized element without decoding it.
+     * @param index
+     * @return
+     */
+    public byte[] getBytes(int index) {
+        return elementBytes.get(index);
+    }
+
+    @Override
+    public int size() {
+        return elementBytes.size();
+    }
+
+    /**
+     * Returns the number of elements which are currently decoded.
+     * @return
+     */
+    public int decodedElements() {
+        if (elements != null) {
+            int decodedElements = 0;
+            for (int i = 0; i < elements.length(); i++) {
+                if (elements.get(i) != null) {
+                    decodedElements++;
+                }
+            }
+            return decodedElements;
+        }
+
+        synchronized (recentElements) {
+            return recentElements.size();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o instanceof LazyPublicKey) {
+            LazyPublicKey that = (LazyPublicKey) o;
+            // Same format: the encodings are equal if and only if the elements are equal
+            if (formatVersion != that.formatVersion) return super.equals(o);
+            if (size() != that.size()) return false;
+            for (int i = 0; i < size(); i++) {
+                if (!Arrays.equals(getBytes(i), that.getBytes(i))) return false;
+            }
+            return true;
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * Hash code of the size and the first element g_0. Unlike {@link List#hashCode()} it does not decode all elements,
+     * since key agents are hashed (and logged) often and decoding a large or memory-mapped public key would cost far
+     * more than the hash is worth. It is the same for the public key in every format, so it is consistent with
+     * {@link #equals(Object)} among lazy public keys. Lists of decoded elements which are equal to a lazy public key
+     * have another hash code, so both must not be mixed as keys of a hash map.
+     * @return
+     */
+    @Override
+    public int hashCode() {
+        return 31 * size() + (size() > 0 ? get(0).hashCode() : 0);
+    }
+}
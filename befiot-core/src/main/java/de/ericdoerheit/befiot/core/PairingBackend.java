@@ -0,0 +1,30 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingParameters;
+
+/**
+ * Implementation of the pairing arithmetic. Additional backends can be provided as service
+ * (META-INF/services/de.ericdoerheit.befiot.core.PairingBackend) and are picked up by {@link PairingBackends}.
+ */
+public interface PairingBackend {
+
+    /**
+     * Returns the unique name of the backend which is used to select it.
+     * @return
+     */
+    String getName();
+
+    /**
+     * Returns whether the backend can be used in this process (e.g. the native library could be loaded).
+     * @return
+     */
+    boolean isAvailable();
+
+    /**
+     * Creates a new pairing for the given parameters.
+     * @param pairingParameters
+     * @return
+     */
+    Pairing createPairing(PairingParameters pairingParameters);
+}
@@ -0,0 +1,239 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Selects the {@link PairingBackend} which creates the pairings of the {@link PairingRegistry}. The backend is chosen
+ * by the system property befiot.pairing.backend:
+ * <ul>
+ *     <li>name of a backend (e.g. jpbc or pbc)</li>
+ *     <li>auto: measure all available backends and choose the fastest one</li>
+ *     <li>not set: native PBC if it is available, otherwise pure Java jPBC</li>
+ * </ul>
+ * The backend must be selected before the first pairing is created.
+ */
+public class PairingBackends {
+    private static final Logger log = LoggerFactory.getLogger(PairingBackends.class);
+
+    public static final String BACKEND_PROPERTY = "befiot.pairing.backend";
+    public static final String AUTO = "auto";
+
+    private static final int CALIBRATION_WARMUP_ROUNDS = 3;
+    private static final int CALIBRATION_ROUNDS = 10;
+
+    private static PairingBackend activeBackend;
+    private static Measurement activeMeasurement;
+
+    /**
+     * Returns the built-in backends (in order of preference) followed by the backends provided as service.
+     * @return
+     */
+    public static List<PairingBackend> getBackends() {
+        List<PairingBackend> backends = new ArrayList<PairingBackend>();
+        backends.add(new PbcPairingBackend());
+        backends.add(new JpbcPairingBackend());
+        for (PairingBackend backend : ServiceLoader.load(PairingBackend.class)) {
+            backends.add(backend);
+        }
+        return backends;
+    }
+
+    /**
+     * Returns the active backend. On the first call the backend is selected according to the system property.
+     * @return
+     */
+    public static synchronized PairingBackend getActiveBackend() {
+        if (activeBackend == null) {
+            String name = System.getProperty(BACKEND_PROPERTY);
+            if (AUTO.equals(name)) {
+                calibrate();
+            } else if (name != null) {
+                select(name);
+            } else {
+                for (PairingBackend backend : getBackends()) {
+                    if (backend.isAvailable()) {
+                        activeBackend = backend;
+                        break;
+                    }
+                }
+                log.info("Pairing backend {} is active.", activeBackend.getName());
+            }
+        }
+        return activeBackend;
+    }
+
+    /**
+     * Activates the available backend with the given name.
+     * @param name
+     */
+    public static synchronized void select(String name) {
+        checkNoPairingCreated();
+
+        for (PairingBackend backend : getBackends()) {
+            if (backend.getName().equals(name)) {
+                if (!backend.isAvailable()) {
+                    throw new IllegalArgumentException("Pairing backend " + name + " is not available.");
+                }
+                activeBackend = backend;
+                activeMeasurement = null;
+                log.info("Pairing backend {} is active.", name);
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown pairing backend " + name + ".");
+    }
+
+    /**
+     * Measures the pairing and exponentiation costs of all available backends with the default pairing parameters
+     * and activates the fastest one.
+     * @return Measurement of the activated backend
+     */
+    public static synchronized Measurement calibrate() {
+        checkNoPairingCreated();
+
+        PairingParameters pairingParameters = PairingRegistry.getPairingParameters(PairingRegistry.DEFAULT_PAIRING_IDENTIFIER);
+        Measurement fastestMeasurement = null;
+        PairingBackend fastestBackend = null;
+
+        for (PairingBackend backend : getBackends()) {
+            if (!backend.isAvailable()) {
+                continue;
+            }
+
+            try {
+                Measurement measurement = measure(backend, pairingParameters);
+                log.info("Calibration: {}", measurement);
+                if (fastestMeasurement == null || measurement.getCost() < fastestMeasurement.getCost()) {
+                    fastestMeasurement = measurement;
+                    fastestBackend = backend;
+                }
+            } catch (RuntimeException e) {
+                log.error("Calibration of pairing backend {} failed: {}", backend.getName(), e.getMessage());
+            }
+        }
+
+        if (fastestBackend == null) {
+            throw new IllegalStateException("No pairing backend is available.");
+        }
+
+        activeBackend = fastestBackend;
+        activeMeasurement = fastestMeasurement;
+        log.info("Pairing backend {} is active.", fastestBackend.getName());
+        return fastestMeasurement;
+    }
+
+    /**
+     * Measures the average cost of one pairing and of one exponentiation in G1 and GT.
+     * @param backend
+     * @param pairingParameters
+     * @return
+     */
+    public static Measurement measure(PairingBackend backend, PairingParameters pairingParameters) {
+        Pairing pairing = backend.createPairing(pairingParameters);
+        Element g1Elem = pairing.getG1().newRandomElement().getImmutable();
+        Element g2Elem = pairing.getG1().newRandomElement().getImmutable();
+        Element gtElem = pairing.pairing(g1Elem, g2Elem).getImmutable();
+        BigInteger exponent = pairing.getZr().newRandomElement().toBigInteger();
+
+        for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS; i++) {
+            pairing.pairing(g1Elem, g2Elem);
+            g1Elem.pow(exponent);
+            gtElem.pow(exponent);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            pairing.pairing(g1Elem, g2Elem);
+        }
+        long pairingNanos = (System.nanoTime() - start) / CALIBRATION_ROUNDS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            g1Elem.pow(exponent);
+        }
+        long g1PowNanos = (System.nanoTime() - start) / CALIBRATION_ROUNDS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            gtElem.pow(exponent);
+        }
+        long gtPowNanos = (System.nanoTime() - start) / CALIBRATION_ROUNDS;
+
+        return new Measurement(backend.getName(), pairingNanos, g1PowNanos, gtPowNanos);
+    }
+
+    /**
+     * Returns the measurement of the active backend or null if it was not calibrated.
+     * @return
+     */
+    public static synchronized Measurement getActiveMeasurement() {
+        return activeMeasurement;
+    }
+
+    private static void checkNoPairingCreated() {
+        if (PairingRegistry.hasPairings()) {
+            throw new IllegalStateException("The pairing backend must be selected before the first pairing is created.");
+        }
+    }
+
+    /**
+     * Average costs of the basic operations of a backend in nanoseconds.
+     */
+    public static class Measurement {
+        private final String backendName;
+        private final long pairingNanos;
+        private final long g1PowNanos;
+        private final long gtPowNanos;
+
+        public Measurement(String backendName, long pairingNanos, long g1PowNanos, long gtPowNanos) {
+            this.backendName = backendName;
+            this.pairingNanos = pairingNanos;
+            this.g1PowNanos = g1PowNanos;
+            this.gtPowNanos = gtPowNanos;
+        }
+
+        public String getBackendName() {
+            return backendName;
+        }
+
+        public long getPairingNanos() {
+            return pairingNanos;
+        }
+
+        public long getG1PowNanos() {
+            return g1PowNanos;
+        }
+
+        public long getGtPowNanos() {
+            return gtPowNanos;
+        }
+
+        /**
+         * Cost of one decryption (two pairings) and one encryption (two G1 and one GT exponentiations).
+         * @return
+         */
+        public long getCost() {
+            return 2 * pairingNanos + 2 * g1PowNanos + gtPowNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "{"
+                    + "\"backend\": \"" + backendName + "\","
+                    + "\"pairingNanos\": " + pairingNanos + ","
+                    + "\"g1PowNanos\": " + g1PowNanos + ","
+                    + "\"gtPowNanos\": " + gtPowNanos
+                    + "}";
+        }
+    }
+}
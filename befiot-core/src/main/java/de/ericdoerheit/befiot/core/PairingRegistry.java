@@ -0,0 +1,194 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingParameters;
+import it.unisa.dia.gas.plaf.jpbc.pairing.parameters.PropertiesParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide registry of pairings. Each pairing is built once and then shared by all Key Agent Builders, Key Agents
+ * and Encryption Headers which use the same pairing identifier.
+ *
+ * The broadcast encryption pairs elements of G1 with each other, so only symmetric pairings (Type A and E) can be
+ * used. Further parameter sets (e.g. Type A curves of other security levels) can be registered under new identifiers.
+ */
+public class PairingRegistry {
+    private static final Logger log = LoggerFactory.getLogger(PairingRegistry.class);
+
+    // Type A curve with 512 bit q (see /curves/a.properties)
+    public static final int DEFAULT_PAIRING_IDENTIFIER = 0;
+
+    // Type E curve with 1024 bit q (see /curves/e.properties), its security does not depend on the embedding degree
+    public static final int TYPE_E_PAIRING_IDENTIFIER = 1;
+
+    private static final Map<Integer, Pairing> pairings = new HashMap<Integer, Pairing>();
+    private static final Map<Integer, PairingParameters> registeredPairingParameters = new HashMap<Integer, PairingParameters>();
+
+    /**
+     * Returns the shared pairing for the given identifier. The pairing is created on the first call.
+     * @param pairingIdentifier
+     * @return
+     */
+    public static Pairing getPairing(int pairingIdentifier) {
+        // Select the backend outside of the lock since the calibration needs the pairing parameters
+        PairingBackend backend = PairingBackends.getActiveBackend();
+
+        synchronized (PairingRegistry.class) {
+            Pairing pairing = pairings.get(pairingIdentifier);
+
+            if (pairing == null) {
+                log.debug("Create pairing for pairing identifier {} with backend {}.", pairingIdentifier, backend.getName());
+                pairing = backend.createPairing(getPairingParameters(pairingIdentifier));
+                if (!pairing.isSymmetric()) {
+                    throw new IllegalArgumentException("Pairing " + pairingIdentifier + " is not symmetric.");
+                }
+                pairings.put(pairingIdentifier, pairing);
+            }
+
+            return pairing;
+        }
+    }
+
+    /**
+     * Returns whether a pairing was created already.
+     * @return
+     */
+    static synchronized boolean hasPairings() {
+        return !pairings.isEmpty();
+    }
+
+    public static Pairing getDefaultPairing() {
+        return getPairing(DEFAULT_PAIRING_IDENTIFIER);
+    }
+
+    /**
+     * Registers additional pairing parameters (for example generated with TypeACurveGenerator) under the given
+     * identifier. All parties which exchange key agents or headers of this pairing must register the same parameters.
+     * @param pairingIdentifier
+     * @param pairingParameters Parameters of a symmetric pairing
+     */
+    public static synchronized void registerPairingParameters(int pairingIdentifier, PairingParameters pairingParameters) {
+        if (pairingIdentifier == DEFAULT_PAIRING_IDENTIFIER || pairingIdentifier == TYPE_E_PAIRING_IDENTIFIER
+                || registeredPairingParameters.containsKey(pairingIdentifier)) {
+            throw new IllegalArgumentException("Pairing identifier " + pairingIdentifier + " is already used.");
+        }
+        registeredPairingParameters.put(pairingIdentifier, pairingParameters);
+    }
+
+    /**
+     * Returns the identifier under which the given pairing is registered.
+     * @param pairing
+     * @return
+     */
+    public static synchronized int getPairingIdentifier(Pairing pairing) {
+        for (Map.Entry<Integer, Pairing> entry : pairings.entrySet()) {
+            if (entry.getValue() == pairing) {
+                return entry.getKey();
+            }
+        }
+
+        throw new IllegalArgumentException("Pairing is not registered.");
+    }
+
+    /**
+     * Returns the identifier of the pairing whose G1 is the given field.
+     * @param g1
+     * @return
+     */
+    public static synchronized int getPairingIdentifier(Field g1) {
+        for (Map.Entry<Integer, Pairing> entry : pairings.entrySet()) {
+            if (sameField(entry.getValue().getG1(), g1)) {
+                return entry.getKey();
+            }
+        }
+
+        throw new IllegalArgumentException("Field does not belong to a registered pairing.");
+    }
+
+    /**
+     * Checks that the given element belongs to G1 of the given pairing, so that elements of different curves are not
+     * mixed.
+     * @param pairing
+     * @param field Field of the element
+     */
+    public static void checkG1(Pairing pairing, Field field) {
+        if (!sameField(pairing.getG1(), field)) {
+            throw new IllegalArgumentException("Element does not belong to G1 of the pairing (different curves).");
+        }
+    }
+
+    /**
+     * Checks that the public key belongs to G1 of the given pairing. A lazy public key is checked without decoding it.
+     * @param pairing
+     * @param publicKey
+     */
+    public static void checkPublicKey(Pairing pairing, List<Element> publicKey) {
+        if (publicKey instanceof LazyPublicKey) {
+            checkG1(pairing, ((LazyPublicKey) publicKey).getField());
+        } else if (!publicKey.isEmpty()) {
+            checkG1(pairing, publicKey.get(0).getField());
+        }
+    }
+
+    private static boolean sameField(Field field, Field otherField) {
+        return field == otherField || (field.getClass() == otherField.getClass()
+                && field.getLengthInBytes() == otherField.getLengthInBytes()
+                && field.getOrder().equals(otherField.getOrder()));
+    }
+
+    /**
+     * Returns the parameters of the given pairing identifier.
+     * @param pairingIdentifier
+     * @return
+     */
+    public static synchronized PairingParameters getPairingParameters(int pairingIdentifier) {
+        PropertiesParameters properties = new PropertiesParameters();
+
+        switch (pairingIdentifier) {
+            case DEFAULT_PAIRING_IDENTIFIER:
+                properties.put("type", "a");
+                properties.put("q", "8780710799663312522437781984754049815806883199414208211028653399266475630880222957078625179422662221423155858769582317459277713367317481324925129998224791");
+                properties.put("h", "12016012264891146079388821366740534204802954401251311822919615131047207289359704531102844802183906537786776");
+                properties.put("r", "730750818665451621361119245571504901405976559617");
+                properties.put("exp1", "107");
+                properties.put("exp2", "159");
+                properties.put("sign0", "1");
+                properties.put("sign1", "1");
+                return properties;
+            case TYPE_E_PAIRING_IDENTIFIER:
+                return loadPairingParameters(properties, "curves/e.properties");
+            default:
+                PairingParameters pairingParameters = registeredPairingParameters.get(pairingIdentifier);
+                if (pairingParameters == null) {
+                    throw new IllegalArgumentException("Unknown pairing identifier " + pairingIdentifier + ".");
+                }
+                return pairingParameters;
+        }
+    }
+
+    private static PairingParameters loadPairingParameters(PropertiesParameters properties, String resource) {
+        InputStream inputStream = PairingRegistry.class.getClassLoader().getResourceAsStream(resource);
+        if (inputStream == null) {
+            throw new IllegalStateException("Pairing parameters " + resource + " not found.");
+        }
+
+        try {
+            return properties.load(inputStream);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
+    }
+}
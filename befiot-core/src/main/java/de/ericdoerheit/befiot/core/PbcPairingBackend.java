@@ -0,0 +1,31 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingParameters;
+import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
+
+/**
+ * jPBC wrapper of the native PBC library. Only available if the native library can be loaded.
+ */
+public class PbcPairingBackend implements PairingBackend {
+
+    public static final String NAME = "pbc";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return PairingFactory.getInstance().isPBCAvailable();
+    }
+
+    @Override
+    public Pairing createPairing(PairingParameters pairingParameters) {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Native PBC library is not available.");
+        }
+        return JpbcPairingBackend.createPairing(pairingParameters, true);
+    }
+}
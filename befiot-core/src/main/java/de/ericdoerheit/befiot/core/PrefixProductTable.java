@@ -0,0 +1,142 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table of prefix products P_k = prod_{j=1..k} factor(j), so that the product of a contiguous range of factors is
+ * P_to / P_{from-1}, i.e. one division instead of one multiplication per factor.
+ *
+ * The table is built lazily up to the largest prefix which was requested. To bound the memory, only every stride-th
+ * prefix product is kept (at most maximumElements of them) and the remaining factors up to the requested prefix are
+ * multiplied on demand, which costs at most stride - 1 multiplications per prefix.
+ */
+public abstract class PrefixProductTable {
+
+    public static final int DEFAULT_MAXIMUM_ELEMENTS = 1 << 14;
+
+    private final Field field;
+    private final int length;
+    private final int stride;
+
+    // P_{c * stride} at index c
+    private final List<Element> checkpoints;
+
+    private long multiplications;
+
+    /**
+     * @param field Field of the factors
+     * @param length Number of factors
+     * @param maximumElements Maximum number of prefix products which are kept
+     */
+    public PrefixProductTable(Field field, int length, int maximumElements) {
+        if (maximumElements < 1) {
+            throw new IllegalArgumentException("At least one prefix product must be kept.");
+        }
+        this.field = field;
+        this.length = length;
+        this.stride = Math.max(1, (length + maximumElements - 1) / maximumElements);
+        this.checkpoints = new ArrayList<Element>();
+        this.checkpoints.add(field.newOneElement().getImmutable());
+    }
+
+    /**
+     * Returns the factor with the given index (between 1 and length) or null if it does not contribute.
+     * @param index
+     * @return
+     */
+    protected abstract Element factorElement(int index);
+
+    /**
+     * Returns a new element which contains the product of the factors 1, ..., k. Only building the kept prefix
+     * products holds the lock, the remaining factors are multiplied outside of it.
+     * @param k
+     * @return
+     */
+    public Element prefix(int k) {
+        if (k < 0 || k > length) {
+            throw new IndexOutOfBoundsException("Prefix: " + k + ", Length: " + length);
+        }
+
+        int checkpoint = k / stride;
+        Element checkpointElem;
+        synchronized (this) {
+            while (checkpoints.size() <= checkpoint) {
+                int from = (checkpoints.size() - 1) * stride;
+                checkpoints.add(multiplyFactors(checkpoints.get(checkpoints.size() - 1).duplicate(), from + 1,
+                        from + stride).getImmutable());
+            }
+            checkpointElem = checkpoints.get(checkpoint);
+        }
+
+        return multiplyFactors(checkpointElem.duplicate(), checkpoint * stride + 1, k);
+    }
+
+    /**
+     * Returns a new element which contains the product of the factors from, ..., to.
+     * @param from First index (inclusive, at least 1)
+     * @param to Last index (inclusive)
+     * @return
+     */
+    public Element range(int from, int to) {
+        Element productElem = prefix(to);
+        if (from > 1) {
+            productElem.div(prefix(from - 1));
+        }
+        return productElem;
+    }
+
+    private Element multiplyFactors(Element productElem, int from, int to) {
+        int factors = 0;
+        for (int index = from; index <= to; index++) {
+            Element factorElem = factorElement(index);
+            if (factorElem != null) {
+                productElem.mul(factorElem);
+                factors++;
+            }
+        }
+        synchronized (this) {
+            multiplications += factors;
+        }
+        return productElem;
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Number of prefix products which are built so far.
+     */
+    public synchronized int getNumberOfElements() {
+        return checkpoints.size();
+    }
+
+    /**
+     * Number of multiplications for building the table and for the prefixes between the kept prefix products.
+     */
+    public synchronized long getMultiplications() {
+        return multiplications;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrefixProductTable{" +
+                "length=" + length +
+                ", stride=" + stride +
+                ", numberOfElements=" + checkpoints.size() +
+                ", multiplications=" + multiplications +
+                '}';
+    }
+}
@@ -0,0 +1,373 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+import it.unisa.dia.gas.jpbc.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary public key file which is memory-mapped, so that the public key is not held on the heap and all Encryption
+ * and Decryption Key Agents (also of other processes) with the same public key share the mapped pages.
+ *
+ * The file consists of a header (magic, file version, pairing identifier, format version of the element encoding,
+ * number of elements, slot size) followed by one fixed-size slot per element, so that an element is found by its
+ * index. A slot holds the length of the serialized element (2 bytes) followed by the serialized element. The zero
+ * element (g_{n+1} of the public key), which is encoded uncompressed also in the compressed format, is stored as the
+ * length marker {@link #ZERO_ELEMENT} without the element, so that it does not double the slot size of compressed
+ * public keys.
+ *
+ * Public key files must not be changed while they are mapped, a changed public key has to be written to a new file.
+ */
+public class PublicKeyFile {
+    private static final Logger log = LoggerFactory.getLogger(PublicKeyFile.class);
+
+    private static final int MAGIC = 0x42455046; // "BEPF"
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_SIZE = 6 * 4;
+
+    // Decoded elements which are kept per shared public key
+    public static final int DEFAULT_MAXIMUM_CACHED_ELEMENTS = 1024;
+
+    // Length of the slots which contain the zero element
+    private static final int ZERO_ELEMENT = 0xffff;
+
+    // Number of elements which are compared to check that a file contains a public key
+    private static final int SAMPLE_SIZE = 16;
+
+    // Open files by canonical path
+    private static final Map<String, WeakReference<PublicKeyFile>> openFiles = new HashMap<String, WeakReference<PublicKeyFile>>();
+
+    private final File file;
+    private final int pairingIdentifier;
+    private final int formatVersion;
+    private final int numberOfElements;
+    private final int slotSize;
+
+    // Length and modification time of the mapped file to detect a replaced file
+    private final long length;
+    private final long lastModified;
+
+    // Mapped slots, a buffer holds at most slotsPerBuffer slots since a mapping is limited to 2GB
+    private final MappedByteBuffer[] buffers;
+    private final int slotsPerBuffer;
+
+    private LazyPublicKey publicKey;
+
+    // Serialized zero element, created on first use
+    private volatile byte[] zeroElementBytes;
+
+    private PublicKeyFile(File file) throws IOException {
+        this.file = file;
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != FILE_VERSION) {
+                throw new IOException(file + " is not a public key file.");
+            }
+            pairingIdentifier = header.getInt();
+            formatVersion = header.getInt();
+            numberOfElements = header.getInt();
+            slotSize = header.getInt();
+
+            if ((long) HEADER_SIZE + (long) numberOfElements * slotSize > channel.size()) {
+                throw new IOException(file + " is truncated.");
+            }
+
+            slotsPerBuffer = Integer.MAX_VALUE / slotSize;
+            int numberOfBuffers = (numberOfElements + slotsPerBuffer - 1) / slotsPerBuffer;
+            buffers = new MappedByteBuffer[numberOfBuffers];
+            for (int i = 0; i < numberOfBuffers; i++) {
+                long position = HEADER_SIZE + (long) i * slotsPerBuffer * slotSize;
+                long size = (long) Math.min(slotsPerBuffer, numberOfElements - i * slotsPerBuffer) * slotSize;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+        } finally {
+            // The mappings stay valid after the file is closed
+            randomAccessFile.close();
+        }
+
+        log.debug("Mapped public key file {} with {} elements.", file, numberOfElements);
+    }
+
+    /**
+     * Writes the serialized public key elements to the given file. The file is written to a temporary file first and
+     * then renamed, so that readers never map a partially written file.
+     * @param file
+     * @param elementBytes Serialized elements
+     * @param pairingIdentifier
+     * @param formatVersion Encoding of the serialized elements (see {@link ElementEncoding})
+     * @throws IOException
+     */
+    public static void writeElementBytes(File file, List<byte[]> elementBytes, int pairingIdentifier, int formatVersion)
+            throws IOException {
+        // Sized by the elements except the zero element
+        Field field = PairingRegistry.getPairing(pairingIdentifier).getG1();
+        int compressedLength = compressedLength(field, formatVersion);
+        BitSet zeroElements = new BitSet();
+        int maximumLength = 0;
+        for (int index = 0; index < elementBytes.size(); index++) {
+            byte[] bytes = elementBytes.get(index);
+            if (bytes.length > compressedLength && ElementEncoding.fromBytes(field, bytes, formatVersion).isZero()) {
+                zeroElements.set(index);
+            } else {
+                maximumLength = Math.max(maximumLength, bytes.length);
+            }
+        }
+        if (maximumLength >= ZERO_ELEMENT) {
+            throw new IllegalArgumentException("Elements must not be larger than " + (ZERO_ELEMENT - 1) + " bytes.");
+        }
+        int slotSize = 2 + maximumLength;
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(pairingIdentifier);
+            out.writeInt(formatVersion);
+            out.writeInt(elementBytes.size());
+            out.writeInt(slotSize);
+
+            byte[] padding = new byte[maximumLength];
+            for (int index = 0; index < elementBytes.size(); index++) {
+                if (zeroElements.get(index)) {
+                    out.writeShort(ZERO_ELEMENT);
+                    out.write(padding);
+                    continue;
+                }
+
+                byte[] bytes = elementBytes.get(index);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+                out.write(padding, 0, maximumLength - bytes.length);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Public key file " + file + " could not be written.");
+        }
+    }
+
+    /**
+     * Returns the length of compressed elements in the given format or Integer.MAX_VALUE if the elements are not
+     * compressed. Only the zero element is longer than the compressed elements, so that only elements which are
+     * longer have to be decoded to find it.
+     */
+    private static int compressedLength(Field field, int formatVersion) {
+        Element element = field.newElement();
+        if (formatVersion != ElementEncoding.COMPRESSED || !(element instanceof Point)) {
+            return Integer.MAX_VALUE;
+        }
+        return ((Point) element).getLengthInBytesCompressed();
+    }
+
+    /**
+     * Writes the public key to the given file.
+     * @param file
+     * @param publicKey
+     * @param pairingIdentifier
+     * @param formatVersion Encoding of the elements (see {@link ElementEncoding})
+     * @throws IOException
+     */
+    public static void write(File file, final List<Element> publicKey, int pairingIdentifier, final int formatVersion)
+            throws IOException {
+        writeElementBytes(file, new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int index) {
+                return ElementEncoding.toBytes(publicKey.get(index), formatVersion);
+            }
+
+            @Override
+            public int size() {
+                return publicKey.size();
+            }
+        }, pairingIdentifier, formatVersion);
+    }
+
+    /**
+     * Maps the given public key file. A file which is already mapped by this process is shared unless it was replaced
+     * since.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static PublicKeyFile open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+
+        synchronized (openFiles) {
+            WeakReference<PublicKeyFile> reference = openFiles.get(path);
+            PublicKeyFile publicKeyFile = reference != null ? reference.get() : null;
+            if (publicKeyFile == null || publicKeyFile.isReplaced()) {
+                publicKeyFile = new PublicKeyFile(new File(path));
+                openFiles.put(path, new WeakReference<PublicKeyFile>(publicKeyFile));
+            }
+            return publicKeyFile;
+        }
+    }
+
+    private boolean isReplaced() {
+        return file.length() != length || file.lastModified() != lastModified;
+    }
+
+    /**
+     * Returns true if the file contains the given serialized public key elements. Compares the encoding, the number of
+     * elements and a sample of the elements (including the first and the last one), which detects truncated files
+     * and files of another public key without reading the whole file.
+     * @param elementBytes Serialized elements
+     * @param pairingIdentifier
+     * @param formatVersion
+     * @return
+     */
+    public boolean matches(List<byte[]> elementBytes, int pairingIdentifier, int formatVersion) {
+        if (this.pairingIdentifier != pairingIdentifier || this.formatVersion != formatVersion
+                || numberOfElements != elementBytes.size()) {
+            return false;
+        }
+
+        int step = Math.max(1, numberOfElements / SAMPLE_SIZE);
+        for (int index = 0; index < numberOfElements; index += step) {
+            if (!matches(index, elementBytes.get(index))) {
+                return false;
+            }
+        }
+        return numberOfElements == 0 || matches(numberOfElements - 1, elementBytes.get(numberOfElements - 1));
+    }
+
+    private boolean matches(int index, byte[] bytes) {
+        if (slotLength(index) == ZERO_ELEMENT) {
+            Field field = PairingRegistry.getPairing(pairingIdentifier).getG1();
+            return bytes.length > compressedLength(field, formatVersion)
+                    && ElementEncoding.fromBytes(field, bytes, formatVersion).isZero();
+        }
+        return Arrays.equals(getBytes(index), bytes);
+    }
+
+    /**
+     * Returns the public key which decodes the elements from the mapped file on demand and keeps the recently used
+     * ones. The public key is shared by all callers.
+     * @return
+     */
+    public synchronized List<Element> getPublicKey() {
+        if (publicKey == null) {
+            publicKey = getPublicKey(DEFAULT_MAXIMUM_CACHED_ELEMENTS);
+        }
+        return publicKey;
+    }
+
+    /**
+     * Returns a new public key which decodes the elements from the mapped file on demand.
+     * @param maximumCachedElements Maximum number of decoded elements which are kept or {@link LazyPublicKey#UNBOUNDED}
+     * @return
+     */
+    public LazyPublicKey getPublicKey(int maximumCachedElements) {
+        return new LazyPublicKey(PairingRegistry.getPairing(pairingIdentifier).getG1(), new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int index) {
+                return getBytes(index);
+            }
+
+            @Override
+            public int size() {
+                return numberOfElements;
+            }
+        }, formatVersion, maximumCachedElements);
+    }
+
+    /**
+     * Reads the serialized element with the given index from the mapped file.
+     * @param index
+     * @return
+     */
+    public byte[] getBytes(int index) {
+        if (index < 0 || index >= numberOfElements) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numberOfElements);
+        }
+
+        // Each reader uses its own view of the buffer, the mapped data is shared
+        ByteBuffer slot = buffers[index / slotsPerBuffer].duplicate();
+        slot.position((index % slotsPerBuffer) * slotSize);
+
+        int length = slot.getShort() & 0xffff;
+        if (length == ZERO_ELEMENT) {
+            return zeroElementBytes();
+        }
+
+        byte[] bytes = new byte[length];
+        slot.get(bytes);
+        return bytes;
+    }
+
+    private int slotLength(int index) {
+        return buffers[index / slotsPerBuffer].getShort((index % slotsPerBuffer) * slotSize) & 0xffff;
+    }
+
+    private byte[] zeroElementBytes() {
+        byte[] bytes = zeroElementBytes;
+        if (bytes == null) {
+            bytes = PairingRegistry.getPairing(pairingIdentifier).getG1().newZeroElement().toBytes();
+            zeroElementBytes = bytes;
+        }
+        // Callers may modify the returned array
+        return Arrays.copyOf(bytes, bytes.length);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getPairingIdentifier() {
+        return pairingIdentifier;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public int size() {
+        return numberOfElements;
+    }
+
+    /**
+     * Number of bytes per element in the file.
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    @Override
+    public String toString() {
+        return "PublicKeyFile{" +
+                "file=" + file +
+                ", pairingIdentifier=" + pairingIdentifier +
+                ", formatVersion=" + formatVersion +
+                ", numberOfElements=" + numberOfElements +
+                ", slotSize=" + slotSize +
+                '}';
+    }
+}
@@ -0,0 +1,222 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Pairing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Generates the sequence g_0, ..., g_2n of a large public key into a {@link PublicKeyFile} without holding it on the
+ * heap. The sequence is generated in segments, each segment is written to its own file as soon as it is complete and
+ * serves as checkpoint: if the generation is restarted with the same parameters, the existing segments are kept and
+ * the generation continues with the first missing segment. When all segments exist, they are joined into the public
+ * key file and deleted.
+ *
+ * The directory contains the parameters of the generation (n, segment size, pairing, encoding and a digest of g and a)
+ * and refuses to continue a generation with other parameters.
+ */
+public class PublicKeyFileGenerator {
+    private static final Logger log = LoggerFactory.getLogger(PublicKeyFileGenerator.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 16;
+
+    public static final String PUBLIC_KEY_FILE_NAME = "public-key.bin";
+    private static final String PARAMETERS_FILE_NAME = "parameters.properties";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    private final int pairingIdentifier;
+    private final File directory;
+    private final int segmentSize;
+    private final int formatVersion;
+    private final PublicKeyGenerator publicKeyGenerator;
+
+    private ProgressListener progressListener;
+
+    /**
+     * @param pairing
+     * @param directory Directory of the segments and the public key file
+     * @param segmentSize Number of elements per segment
+     */
+    public PublicKeyFileGenerator(Pairing pairing, File directory, int segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be at least 1.");
+        }
+        this.pairingIdentifier = PairingRegistry.getPairingIdentifier(pairing);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.formatVersion = Serializer.getFormatVersion();
+        this.publicKeyGenerator = new PublicKeyGenerator(pairing);
+    }
+
+    /**
+     * Generates the missing segments of g_0, ..., g_2n and returns the mapped public key file.
+     * @param gElem
+     * @param aElem
+     * @param n
+     * @return
+     * @throws IOException
+     */
+    public PublicKeyFile generate(Element gElem, Element aElem, int n) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Directory " + directory + " could not be created.");
+        }
+        checkParameters(gElem, aElem, n);
+
+        File publicKeyFile = new File(directory, PUBLIC_KEY_FILE_NAME);
+        if (publicKeyFile.exists()) {
+            return PublicKeyFile.open(publicKeyFile);
+        }
+
+        long numberOfElements = 2L * n + 1;
+        int numberOfSegments = (int) ((numberOfElements + segmentSize - 1) / segmentSize);
+
+        long start = System.currentTimeMillis();
+        long generatedElements = 0;
+        long resumedElements = 0;
+
+        for (int segment = 0; segment < numberOfSegments; segment++) {
+            int from = segment * segmentSize;
+            int to = (int) Math.min((long) from + segmentSize, numberOfElements);
+
+            File segmentFile = segmentFile(segment);
+            if (segmentFile.exists()) {
+                resumedElements += to - from;
+            } else {
+                Element[] gIElems = publicKeyGenerator.generate(gElem, aElem, n, from, to);
+                PublicKeyFile.write(segmentFile, Arrays.asList(gIElems), pairingIdentifier, formatVersion);
+                generatedElements += to - from;
+            }
+
+            long elapsedMillis = Math.max(System.currentTimeMillis() - start, 1);
+            double elementsPerSecond = generatedElements * 1000.0 / elapsedMillis;
+            log.info("Public key generation: {}/{} elements ({} resumed), {} elements/s.",
+                    generatedElements + resumedElements, numberOfElements, resumedElements,
+                    String.format("%.1f", elementsPerSecond));
+            if (progressListener != null) {
+                progressListener.progress(generatedElements + resumedElements, numberOfElements, elementsPerSecond);
+            }
+        }
+
+        join(numberOfSegments, (int) numberOfElements, publicKeyFile);
+
+        for (int segment = 0; segment < numberOfSegments; segment++) {
+            segmentFile(segment).delete();
+        }
+
+        return PublicKeyFile.open(publicKeyFile);
+    }
+
+    /**
+     * Writes the elements of all segments into the public key file.
+     */
+    private void join(int numberOfSegments, final int numberOfElements, File publicKeyFile) throws IOException {
+        final List<PublicKeyFile> segments = new ArrayList<PublicKeyFile>(numberOfSegments);
+        for (int segment = 0; segment < numberOfSegments; segment++) {
+            segments.add(PublicKeyFile.open(segmentFile(segment)));
+        }
+
+        PublicKeyFile.writeElementBytes(publicKeyFile, new AbstractList<byte[]>() {
+            @Override
+            public byte[] get(int index) {
+                return segments.get(index / segmentSize).getBytes(index % segmentSize);
+            }
+
+            @Override
+            public int size() {
+                return numberOfElements;
+            }
+        }, pairingIdentifier, formatVersion);
+    }
+
+    /**
+     * Writes the parameters of a new generation or checks that they match the parameters of the existing generation.
+     */
+    private void checkParameters(Element gElem, Element aElem, int n) throws IOException {
+        Properties parameters = new Properties();
+        parameters.setProperty("n", String.valueOf(n));
+        parameters.setProperty("segment-size", String.valueOf(segmentSize));
+        parameters.setProperty("pairing-identifier", String.valueOf(pairingIdentifier));
+        parameters.setProperty("format-version", String.valueOf(formatVersion));
+        parameters.setProperty("digest", digest(gElem, aElem));
+
+        File parametersFile = new File(directory, PARAMETERS_FILE_NAME);
+        if (!parametersFile.exists()) {
+            OutputStream out = new FileOutputStream(parametersFile);
+            try {
+                parameters.store(out, "Public key generation");
+            } finally {
+                out.close();
+            }
+            return;
+        }
+
+        Properties existingParameters = new Properties();
+        InputStream in = new FileInputStream(parametersFile);
+        try {
+            existingParameters.load(in);
+        } finally {
+            in.close();
+        }
+
+        if (!parameters.equals(existingParameters)) {
+            throw new IllegalStateException("Directory " + directory + " contains the public key of other parameters.");
+        }
+    }
+
+    /**
+     * SHA-256 of g and a, so that the parameters can be compared without storing the secret a.
+     */
+    private static String digest(Element gElem, Element aElem) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(gElem.toBytes());
+            messageDigest.update(aElem.toBytes());
+            return new BigInteger(1, messageDigest.digest()).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, SEGMENT_FILE_PREFIX + segment + ".bin");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Is notified after each segment.
+     */
+    public interface ProgressListener {
+        /**
+         * @param elements Number of elements which are generated (including resumed ones)
+         * @param totalElements 2n+1
+         * @param elementsPerSecond Throughput of this run
+         */
+        void progress(long elements, long totalElements, double elementsPerSecond);
+    }
+}
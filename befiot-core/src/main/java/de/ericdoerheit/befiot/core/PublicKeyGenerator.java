@@ -0,0 +1,167 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Pairing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the sequence g_i = g^(a^i) of the public key. The exponents a^i are computed in Zr (which is cheap) and the
+ * exponentiations of g are distributed in chunks over several threads using a fixed-base table for g. Since g has
+ * order r, g^(a^i mod r) is the same element as the sequentially computed (...(g^a)^a...)^a.
+ */
+public class PublicKeyGenerator {
+    private static final Logger log = LoggerFactory.getLogger(PublicKeyGenerator.class);
+
+    // Below this number of decryption key agents the public key is generated sequentially
+    public static final int PARALLEL_GENERATION_THRESHOLD = 64;
+    public static final int POW_TABLE_WINDOW_SIZE = 8;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private Pairing pairing;
+    private int parallelism;
+
+    public PublicKeyGenerator(Pairing pairing) {
+        this(pairing, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PublicKeyGenerator(Pairing pairing, int parallelism) {
+        this.pairing = pairing;
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * Returns g_0, ..., g_2n where g_i = g^(a^i) and g_{n+1} is the zero element so that the indexes of the list are
+     * the same as the ids.
+     * @param gElem
+     * @param aElem
+     * @param n
+     * @return
+     */
+    public List<Element> generate(Element gElem, Element aElem, int n) {
+        long start = System.currentTimeMillis();
+
+        boolean parallel = parallelism > 1 && n >= PARALLEL_GENERATION_THRESHOLD;
+        Element[] gIElems;
+        if (parallel) {
+            gIElems = generateParallel(gElem, aElem, n);
+        } else {
+            gIElems = generateSequential(gElem, aElem, n);
+        }
+
+        log.debug("Generated 2n+1 = {} public key elements with {} threads in {}ms.", gIElems.length,
+                parallel ? parallelism : 1, System.currentTimeMillis() - start);
+
+        ArrayList<Element> publicKey = new ArrayList<Element>(2*n+2);
+        publicKey.addAll(Arrays.asList(gIElems));
+        return publicKey;
+    }
+
+    private Element[] generateSequential(Element gElem, Element aElem, int n) {
+        Element[] gIElems = new Element[2*n+1];
+
+        // Add g_0 = g^(a^0) = g^1 = g
+        gIElems[0] = gElem.duplicate();
+
+        Element gIElem = gElem.duplicate();
+        for(int i = 1; i <= 2*n; i++) {
+            gIElem.pow(aElem.toBigInteger());
+
+            if(i != n+1) {
+                // Add g_i = g^(a^i)
+                gIElems[i] = gIElem.duplicate();
+            } else {
+                // Add zeroElement for g_{n+1} so that the indexes of the array are the same as the ids
+                gIElems[i] = pairing.getG1().newZeroElement();
+            }
+        }
+
+        return gIElems;
+    }
+
+    private Element[] generateParallel(Element gElem, Element aElem, int n) {
+        return generate(gElem, aElem, n, 0, 2*n+1);
+    }
+
+    /**
+     * Returns g_from, ..., g_{to-1} of the public key g_0, ..., g_2n (with the zero element at n+1), so that a large
+     * public key can be generated in segments. The segment is generated in parallel.
+     * @param gElem
+     * @param aElem
+     * @param n
+     * @param from First index (inclusive)
+     * @param to Last index (exclusive)
+     * @return
+     */
+    public Element[] generate(final Element gElem, Element aElem, final int n, final int from, int to) {
+        final Element[] gIElems = new Element[to - from];
+
+        // a^i in Zr
+        final BigInteger[] exponents = new BigInteger[to - from];
+        Element aIElem = aElem.duplicate().pow(BigInteger.valueOf(from));
+        for (int i = from; i < to; i++) {
+            exponents[i - from] = aIElem.toBigInteger();
+            aIElem.mul(aElem);
+        }
+
+        final FixedBasePowTable gPowTable = new FixedBasePowTable(gElem, pairing.getZr().getOrder().bitLength(),
+                POW_TABLE_WINDOW_SIZE);
+
+        int chunks = parallelism * CHUNKS_PER_THREAD;
+        int chunkSize = (gIElems.length + chunks - 1) / chunks;
+
+        ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int chunk = 0; chunk < gIElems.length; chunk += chunkSize) {
+                final int chunkFrom = chunk;
+                final int chunkTo = Math.min(chunk + chunkSize, gIElems.length);
+
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int k = chunkFrom; k < chunkTo; k++) {
+                            int i = from + k;
+                            if (i == 0) {
+                                // g_0 is g itself
+                                gIElems[k] = gElem.duplicate();
+                            } else if (i != n+1) {
+                                gIElems[k] = gPowTable.pow(exponents[k]);
+                            } else {
+                                gIElems[k] = pairing.getG1().newZeroElement();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Public key generation was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Public key generation failed.", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        return gIElems;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+}
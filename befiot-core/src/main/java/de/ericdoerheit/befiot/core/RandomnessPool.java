@@ -0,0 +1,178 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of precomputed randomness (t, C0 = g^t, K = e(g_B, g_1)^t) for the encapsulation. These parts do not
+ * depend on the receivers, so a refill thread computes them ahead of time and the online step of the encapsulation
+ * only computes C1. If the pool is empty, the randomness is computed on the calling thread and counted as starvation.
+ */
+public abstract class RandomnessPool {
+    private static final Logger log = LoggerFactory.getLogger(RandomnessPool.class);
+
+    // Pause of the refill thread after a failed computation, take() computes the randomness itself meanwhile
+    private static final long REFILL_ERROR_BACKOFF_MILLIS = 1000;
+
+    private final BlockingQueue<Randomness> pool;
+    private final int depth;
+    private Thread refillThread;
+
+    private long hits;
+    private long starvations;
+
+    /**
+     * @param depth Maximum number of precomputed randomness triples
+     */
+    public RandomnessPool(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth must be at least 1.");
+        }
+        this.depth = depth;
+        this.pool = new ArrayBlockingQueue<Randomness>(depth);
+    }
+
+    /**
+     * Computes a new randomness triple.
+     * @return
+     */
+    protected abstract Randomness produce();
+
+    /**
+     * Starts the refill thread which keeps the pool filled.
+     */
+    public synchronized void start() {
+        if (refillThread != null) {
+            return;
+        }
+
+        refillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Randomness randomness;
+                        try {
+                            randomness = produce();
+                        } catch (RuntimeException e) {
+                            log.error("Could not compute randomness, retrying in {} ms.", REFILL_ERROR_BACKOFF_MILLIS, e);
+                            Thread.sleep(REFILL_ERROR_BACKOFF_MILLIS);
+                            continue;
+                        }
+                        pool.put(randomness);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                log.debug("Refill thread stopped.");
+            }
+        }, "eka-randomness-pool");
+        refillThread.setDaemon(true);
+        refillThread.start();
+    }
+
+    /**
+     * Stops the refill thread and discards the precomputed randomness.
+     */
+    public synchronized void stop() {
+        if (refillThread != null) {
+            refillThread.interrupt();
+            refillThread = null;
+        }
+        pool.clear();
+    }
+
+    /**
+     * Returns precomputed randomness or computes it on the calling thread if the pool is empty. Each triple is only
+     * returned once.
+     * @return
+     */
+    public Randomness take() {
+        Randomness randomness = pool.poll();
+
+        synchronized (this) {
+            if (randomness != null) {
+                hits++;
+            } else {
+                starvations++;
+            }
+        }
+
+        return randomness != null ? randomness : produce();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Number of precomputed triples which are currently available.
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * Number of encapsulations which used precomputed randomness.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of encapsulations which found the pool empty and computed the randomness themselves.
+     */
+    public synchronized long getStarvations() {
+        return starvations;
+    }
+
+    /**
+     * Share of encapsulations which found the pool empty.
+     */
+    public synchronized double getStarvationRate() {
+        long takes = hits + starvations;
+        return takes == 0 ? 0 : (double) starvations / takes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RandomnessPool{" +
+                "size=" + pool.size() +
+                ", depth=" + depth +
+                ", hits=" + hits +
+                ", starvations=" + starvations +
+                '}';
+    }
+
+    /**
+     * Random exponent t with C0 = g^t and the key K = e(g_B, g_1)^t.
+     */
+    public static class Randomness {
+        private final BigInteger t;
+        private final Element c0Elem;
+        private final Element keyElem;
+
+        public Randomness(BigInteger t, Element c0Elem, Element keyElem) {
+            this.t = t;
+            this.c0Elem = c0Elem.getImmutable();
+            this.keyElem = keyElem.getImmutable();
+        }
+
+        public BigInteger getT() {
+            return t;
+        }
+
+        public Element getC0Elem() {
+            return c0Elem;
+        }
+
+        public Element getKeyElem() {
+            return keyElem;
+        }
+    }
+}
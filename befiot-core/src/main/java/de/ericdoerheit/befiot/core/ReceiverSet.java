@@ -0,0 +1,336 @@
+package de.ericdoerheit.befiot.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of receiver ids of one tenant. The ids are held as a sorted array without duplicates and, if the ids
+ * are dense enough that it is not larger than the array, as a bitmap from the smallest to the largest id, so that
+ * membership tests take constant time (binary search otherwise). Receiver sets can be shared between threads.
+ */
+public final class ReceiverSet {
+    public static final ReceiverSet EMPTY = new ReceiverSet(new int[0]);
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int[] ids;
+    // Bit i is set if minimum id + i is contained, null for sparse sets
+    private final long[] bitmap;
+
+    private int hashCode;
+
+    private ReceiverSet(int[] sortedDistinctIds) {
+        this.ids = sortedDistinctIds;
+
+        long[] bitmap = null;
+        if (ids.length > 0) {
+            long span = (long) ids[ids.length - 1] - ids[0] + 1;
+            long words = (span + 63) / 64;
+            if (words <= Math.max(ids.length / 2, 1)) {
+                bitmap = new long[(int) words];
+                for (int id : ids) {
+                    int offset = id - ids[0];
+                    bitmap[offset >>> 6] |= 1L << offset;
+                }
+            }
+        }
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * Returns the receiver set of the given ids which can be unsorted and contain duplicates.
+     * @param ids
+     * @return
+     */
+    public static ReceiverSet of(int... ids) {
+        int[] sortedIds = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sortedIds);
+
+        int length = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            if (i == 0 || sortedIds[i] != sortedIds[i - 1]) {
+                sortedIds[length++] = sortedIds[i];
+            }
+        }
+        return new ReceiverSet(length == sortedIds.length ? sortedIds : Arrays.copyOf(sortedIds, length));
+    }
+
+    /**
+     * Returns the receiver set of the given ids.
+     * @param ids
+     * @return
+     */
+    public static ReceiverSet of(Collection<Integer> ids) {
+        int[] idArray = new int[ids.size()];
+        int i = 0;
+        for (Integer id : ids) {
+            idArray[i++] = id;
+        }
+        return of(idArray);
+    }
+
+    /**
+     * Returns the receiver set of the given ranges of ids.
+     * @param ranges Pairs of the first and the last id (inclusive) of each range in ascending order
+     * @return
+     */
+    public static ReceiverSet ofRanges(int... ranges) {
+        long size = checkRanges(ranges, Integer.MAX_VALUE);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Ranges contain too many ids: " + size);
+        }
+
+        // Ascending ranges which do not overlap give sorted distinct ids
+        int[] ids = new int[(int) size];
+        int length = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            int rangeSize = ranges[i + 1] - ranges[i] + 1;
+            for (int offset = 0; offset < rangeSize; offset++) {
+                ids[length++] = ranges[i] + offset;
+            }
+        }
+        return new ReceiverSet(ids);
+    }
+
+    /**
+     * Checks that the ranges are pairs of the first and the last id (inclusive) between 1 and the maximum id in
+     * ascending order which do not overlap.
+     * @param ranges
+     * @param maximumId
+     * @return The number of ids of the ranges
+     * @throws IllegalArgumentException if the ranges are malformed
+     */
+    static long checkRanges(int[] ranges, int maximumId) {
+        if (ranges.length % 2 != 0) {
+            throw new IllegalArgumentException("Ranges must consist of pairs of the first and the last id.");
+        }
+
+        long size = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] < 1 || ranges[i + 1] > maximumId) {
+                throw new IllegalArgumentException("Range " + ranges[i] + "-" + ranges[i + 1] +
+                        " is not between 1 and " + maximumId + ".");
+            }
+            if (ranges[i] > ranges[i + 1]) {
+                throw new IllegalArgumentException("Range " + ranges[i] + "-" + ranges[i + 1] + " is empty.");
+            }
+            if (i > 0 && ranges[i] <= ranges[i - 1]) {
+                throw new IllegalArgumentException("Range " + ranges[i] + "-" + ranges[i + 1] +
+                        " does not follow the previous range.");
+            }
+            size += (long) ranges[i + 1] - ranges[i] + 1;
+        }
+        return size;
+    }
+
+    /**
+     * Returns true if the id is contained in the ranges which passed {@link #checkRanges(int[], int)}.
+     */
+    static boolean rangesContain(int[] ranges, int id) {
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int range = (low + high) >>> 1;
+            if (id < ranges[2 * range]) {
+                high = range - 1;
+            } else if (id > ranges[2 * range + 1]) {
+                low = range + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the id is contained.
+     * @param id
+     * @return
+     */
+    public boolean contains(int id) {
+        if (ids.length == 0 || id < ids[0] || id > ids[ids.length - 1]) {
+            return false;
+        }
+        if (bitmap != null) {
+            int offset = id - ids[0];
+            return (bitmap[offset >>> 6] & (1L << offset)) != 0;
+        }
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    /**
+     * Returns a copy of the sorted ids.
+     * @return
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(ids, ids.length);
+    }
+
+    /**
+     * Returns the ids as maximal ranges of consecutive ids (compact for contiguous receivers, e.g. all sensors
+     * 100-900), see {@link #ofRanges(int...)}.
+     * @return Pairs of the first and the last id (inclusive) of each range in ascending order
+     */
+    public int[] toRanges() {
+        return ranges(ids);
+    }
+
+    /**
+     * Returns the number of maximal ranges of consecutive ids.
+     * @return
+     */
+    public int numberOfRanges() {
+        return numberOfRanges(ids);
+    }
+
+    static int numberOfRanges(int[] sortedIds) {
+        int numberOfRanges = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            if (i == 0 || sortedIds[i] != sortedIds[i - 1] + 1) {
+                numberOfRanges++;
+            }
+        }
+        return numberOfRanges;
+    }
+
+    static int[] ranges(int[] sortedIds) {
+        int[] ranges = new int[2 * numberOfRanges(sortedIds)];
+        int range = -1;
+        for (int i = 0; i < sortedIds.length; i++) {
+            if (i == 0 || sortedIds[i] != sortedIds[i - 1] + 1) {
+                range++;
+                ranges[2 * range] = sortedIds[i];
+            }
+            ranges[2 * range + 1] = sortedIds[i];
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the sorted ids without copying them, callers must not modify the array.
+     */
+    int[] ids() {
+        return ids;
+    }
+
+    /**
+     * Returns the ids which are contained in this set but not in the other one.
+     * @param other
+     * @return
+     */
+    public ReceiverSet minus(ReceiverSet other) {
+        int[] difference = new int[ids.length];
+        int length = 0;
+        int j = 0;
+        for (int id : ids) {
+            while (j < other.ids.length && other.ids[j] < id) {
+                j++;
+            }
+            if (j == other.ids.length || other.ids[j] != id) {
+                difference[length++] = id;
+            }
+        }
+        return length == ids.length ? this : new ReceiverSet(Arrays.copyOf(difference, length));
+    }
+
+    /**
+     * Returns the ids which are contained in this or in the other set.
+     * @param other
+     * @return
+     */
+    public ReceiverSet union(ReceiverSet other) {
+        int[] union = new int[ids.length + other.ids.length];
+        int length = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ids.length || j < other.ids.length) {
+            if (j == other.ids.length || (i < ids.length && ids[i] < other.ids[j])) {
+                union[length++] = ids[i++];
+            } else if (i == ids.length || other.ids[j] < ids[i]) {
+                union[length++] = other.ids[j++];
+            } else {
+                union[length++] = ids[i++];
+                j++;
+            }
+        }
+        return new ReceiverSet(Arrays.copyOf(union, length));
+    }
+
+    /**
+     * Returns a 64 bit hash of the ids which only depends on the ids (and not on their order or on the JVM), so it
+     * can be used as session id between things.
+     * @return
+     */
+    public long hash64() {
+        return hash64(FNV_OFFSET_BASIS);
+    }
+
+    /**
+     * Returns a 64 bit hash of the ids which continues the given hash, e.g. to hash the receiver sets of several
+     * tenants.
+     * @param seed
+     * @return
+     */
+    public long hash64(long seed) {
+        // FNV-1a over the size and the ids
+        long hash = seed;
+        hash = (hash ^ ids.length) * FNV_PRIME;
+        for (int id : ids) {
+            hash = (hash ^ id) * FNV_PRIME;
+        }
+
+        // Final mix (MurmurHash3) so that neighbouring sets differ in all bits
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Continues the given 64 bit hash with the characters of the string (e.g. a tenant id).
+     * @param seed
+     * @param string
+     * @return
+     */
+    public static long hash64(long seed, String string) {
+        long hash = seed;
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return Arrays.equals(ids, ((ReceiverSet) o).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = this.hashCode;
+        if (hashCode == 0) {
+            hashCode = Arrays.hashCode(ids);
+            this.hashCode = hashCode;
+        }
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ids);
+    }
+}
@@ -0,0 +1,313 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of products base * prod_{j in S} factor(j) for receiver sets S. If a receiver set is not cached,
+ * the product is derived from the cached receiver set with the smallest symmetric difference by multiplying the
+ * factors of the added receivers and dividing by the factors of the removed receivers. It is only computed from
+ * scratch if no cached receiver set is closer than the size of the receiver set.
+ *
+ * Products of the active receiver sets (see {@link #setSharedReceiverSets(Collection)}) are computed by a
+ * {@link SharedProductEngine} instead, which shares the sub-products of overlapping receiver sets.
+ */
+public abstract class ReceiverSetProductCache {
+
+    private int maximumSize;
+    private final LinkedHashMap<ReceiverSetKey, Element> products;
+
+    private long hits;
+    private long deltaHits;
+    private long misses;
+
+    // Incremented by clear(), products which were computed before are not inserted
+    private long generation;
+
+    // Engine of the active receiver sets, null if there are none
+    private SharedProductEngine sharedProductEngine;
+
+    /**
+     * @param maximumSize Maximum number of cached receiver sets, 0 disables the cache
+     */
+    public ReceiverSetProductCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+        this.products = new LinkedHashMap<ReceiverSetKey, Element>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ReceiverSetKey, Element> eldest) {
+                return size() > ReceiverSetProductCache.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the element the product starts with.
+     * @return
+     */
+    protected abstract Element baseElement();
+
+    /**
+     * Returns the factor of the given receiver or null if the receiver does not contribute to the product.
+     * @param receiverId
+     * @return
+     */
+    protected abstract Element factorElement(int receiverId);
+
+    /**
+     * Returns a new element which contains the product for the given receiver set. The lock is only held to look up
+     * and insert cached products, the multiplications are done outside of it, so that several threads can compute
+     * products at once. The cached products are immutable and shared between the threads.
+     * @param ids
+     * @return
+     */
+    public Element product(int[] ids) {
+        int[] sortedIds = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sortedIds);
+
+        SharedProductEngine sharedProductEngine = getSharedProductEngine();
+        if (sharedProductEngine != null) {
+            Element productElem = sharedProductEngine.product(ReceiverSet.of(sortedIds));
+            if (productElem != null) {
+                return productElem;
+            }
+        }
+
+        ReceiverSetKey key = new ReceiverSetKey(sortedIds);
+        int[] nearestIds = null;
+        Element nearestProductElem = null;
+        long lookupGeneration;
+        synchronized (this) {
+            lookupGeneration = generation;
+            if (maximumSize <= 0) {
+                misses++;
+                key = null;
+            } else {
+                Element productElem = products.get(key);
+                if (productElem != null) {
+                    hits++;
+                    return productElem.duplicate();
+                }
+
+                // Computing the product from scratch needs one multiplication per receiver
+                int nearestDistance = sortedIds.length;
+                for (Map.Entry<ReceiverSetKey, Element> entry : products.entrySet()) {
+                    int distance = distance(entry.getKey().ids, sortedIds, nearestDistance);
+                    if (distance < nearestDistance) {
+                        nearestIds = entry.getKey().ids;
+                        nearestProductElem = entry.getValue();
+                        nearestDistance = distance;
+                    }
+                }
+
+                if (nearestIds != null) {
+                    deltaHits++;
+                } else {
+                    misses++;
+                }
+            }
+        }
+
+        Element productElem = nearestIds != null
+                ? productFromCachedProduct(nearestProductElem, nearestIds, sortedIds)
+                : productFromScratch(sortedIds);
+
+        if (key != null) {
+            Element cachedProductElem = productElem.duplicate().getImmutable();
+            synchronized (this) {
+                if (maximumSize > 0 && generation == lookupGeneration) {
+                    products.put(key, cachedProductElem);
+                }
+            }
+        }
+        return productElem;
+    }
+
+    private Element productFromScratch(int[] ids) {
+        Element productElem = baseElement().duplicate();
+        for (int id : ids) {
+            Element factorElem = factorElement(id);
+            if (factorElem != null) {
+                productElem.mul(factorElem);
+            }
+        }
+        return productElem;
+    }
+
+    private Element productFromCachedProduct(Element cachedProductElem, int[] cachedIds, int[] ids) {
+        Element productElem = cachedProductElem.duplicate();
+
+        int i = 0;
+        int j = 0;
+        while (i < cachedIds.length || j < ids.length) {
+            if (j >= ids.length || (i < cachedIds.length && cachedIds[i] < ids[j])) {
+                // Receiver was removed
+                Element factorElem = factorElement(cachedIds[i]);
+                if (factorElem != null) {
+                    productElem.div(factorElem);
+                }
+                i++;
+            } else if (i >= cachedIds.length || ids[j] < cachedIds[i]) {
+                // Receiver was added
+                Element factorElem = factorElement(ids[j]);
+                if (factorElem != null) {
+                    productElem.mul(factorElem);
+                }
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        return productElem;
+    }
+
+    /**
+     * Returns the size of the symmetric difference of two sorted arrays. Stops counting at the given limit.
+     */
+    private static int distance(int[] a, int[] b, int limit) {
+        int distance = 0;
+        int i = 0;
+        int j = 0;
+        while ((i < a.length || j < b.length) && distance < limit) {
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                distance++;
+                i++;
+            } else if (i >= a.length || b[j] < a[i]) {
+                distance++;
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Sets the active receiver sets whose products are computed with shared sub-products, null or an empty collection
+     * removes them.
+     * @param receiverSets
+     */
+    public synchronized void setSharedReceiverSets(Collection<ReceiverSet> receiverSets) {
+        if (receiverSets == null || receiverSets.isEmpty()) {
+            sharedProductEngine = null;
+            return;
+        }
+
+        sharedProductEngine = new SharedProductEngine(SharedProductEngine.DEFAULT_MAXIMUM_CACHED_ELEMENTS) {
+            @Override
+            protected Element baseElement() {
+                return ReceiverSetProductCache.this.baseElement();
+            }
+
+            @Override
+            protected Element factorElement(int receiverId) {
+                return ReceiverSetProductCache.this.factorElement(receiverId);
+            }
+        };
+        sharedProductEngine.setReceiverSets(receiverSets);
+    }
+
+    /**
+     * Returns the engine of the active receiver sets which also holds the multiplication counters or null if there
+     * are no active receiver sets.
+     * @return
+     */
+    public synchronized SharedProductEngine getSharedProductEngine() {
+        return sharedProductEngine;
+    }
+
+    /**
+     * Removes all cached products. Must be called when the base or the factors change.
+     */
+    public synchronized void clear() {
+        products.clear();
+        generation++;
+        if (sharedProductEngine != null) {
+            sharedProductEngine.clear();
+        }
+    }
+
+    public synchronized int size() {
+        return products.size();
+    }
+
+    public synchronized int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public synchronized void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+        while (products.size() > Math.max(maximumSize, 0)) {
+            products.remove(products.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Number of receiver sets which were found in the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of receiver sets which were derived from a cached receiver set.
+     */
+    public synchronized long getDeltaHits() {
+        return deltaHits;
+    }
+
+    /**
+     * Number of receiver sets which were computed from scratch.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Share of lookups which were answered from the cache, either directly or by a delta update.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + deltaHits + misses;
+        return lookups == 0 ? 0 : (double) (hits + deltaHits) / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReceiverSetProductCache{" +
+                "size=" + products.size() +
+                ", maximumSize=" + maximumSize +
+                ", hits=" + hits +
+                ", deltaHits=" + deltaHits +
+                ", misses=" + misses +
+                '}';
+    }
+
+    private static class ReceiverSetKey {
+        private final int[] ids;
+        private final int hashCode;
+
+        private ReceiverSetKey(int[] ids) {
+            this.ids = ids;
+            this.hashCode = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            return Arrays.equals(ids, ((ReceiverSetKey) o).ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -16,23 +16,59 @@ import java.util.List;
 public class Serializer {
     private static final Logger log = LoggerFactory.getLogger(Serializer.class);
 
-    // TODO: 04/02/16 Pairing Identifier -> Maybe include pairing parameters in KAB, DKA and EKA
-
     private static ObjectMapper mapper = new ObjectMapper();
-    
+
+    // Encoding of the G1 elements in new data objects
+    private static int formatVersion = ElementEncoding.COMPRESSED;
+
+    public static int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Selects the encoding of the G1 elements, {@link ElementEncoding#UNCOMPRESSED} for readers which do not know the
+     * format version yet.
+     * @param formatVersion
+     */
+    public static void setFormatVersion(int formatVersion) {
+        Serializer.formatVersion = formatVersion;
+    }
+
+    private static byte[] elementToData(Element element) {
+        return ElementEncoding.toBytes(element, formatVersion);
+    }
+
+    /* --- Public Key --- */
+    private static List<byte[]> publicKeyToData(List<Element> publicKey) {
+        List<byte[]> publicKeyData = new ArrayList<byte[]>(publicKey.size());
+
+        if (publicKey instanceof LazyPublicKey && ((LazyPublicKey) publicKey).getFormatVersion() == formatVersion) {
+            // Use the serialized elements without decoding them
+            LazyPublicKey lazyPublicKey = (LazyPublicKey) publicKey;
+            for (int i = 0; i < lazyPublicKey.size(); i++) {
+                publicKeyData.add(lazyPublicKey.getBytes(i));
+            }
+        } else {
+            for (Element e : publicKey) {
+                publicKeyData.add(elementToData(e));
+            }
+        }
+
+        return publicKeyData;
+    }
+
     /* --- Decryption Key Agent --- */
     public static DecryptionKeyAgentData decryptionKeyAgentToData(DecryptionKeyAgent decryptionKeyAgent) {
         DecryptionKeyAgentData decryptionKeyAgentData = new DecryptionKeyAgentData();
+        decryptionKeyAgentData.setPairingIdentifier(PairingRegistry.getPairingIdentifier(decryptionKeyAgent.getPairing()));
+        decryptionKeyAgentData.setFormatVersion(formatVersion);
         decryptionKeyAgentData.setId(decryptionKeyAgent.getId());
-        decryptionKeyAgentData.setPrivateKey(decryptionKeyAgent.getPrivateKey().toBytes());
+        decryptionKeyAgentData.setPrivateKey(elementToData(decryptionKeyAgent.getPrivateKey()));
         decryptionKeyAgentData.setValidNotBefore(decryptionKeyAgent.getValidNotBefore());
         decryptionKeyAgentData.setValidNotAfter(decryptionKeyAgent.getValidNotAfter());
+        decryptionKeyAgentData.setBlockSize(decryptionKeyAgent.isPartitioned() ? decryptionKeyAgent.getBlockSize() : 0);
 
-        List<byte[]> publicKey = new ArrayList<byte[]>();
-        for (Element e : decryptionKeyAgent.getPublicKey()) {
-            publicKey.add(e.toBytes());
-        }
-        decryptionKeyAgentData.setPublicKey(publicKey);
+        decryptionKeyAgentData.setPublicKey(publicKeyToData(decryptionKeyAgent.getPublicKey()));
 
         return decryptionKeyAgentData;
     }
@@ -48,14 +84,14 @@ public class Serializer {
     /* --- Encryption Key Agent --- */
     public static EncryptionKeyAgentData encryptionKeyAgentToData(EncryptionKeyAgent encryptionKeyAgent) {
         EncryptionKeyAgentData encryptionKeyAgentData = new EncryptionKeyAgentData();
+        encryptionKeyAgentData.setPairingIdentifier(PairingRegistry.getPairingIdentifier(encryptionKeyAgent.getPairing()));
+        encryptionKeyAgentData.setFormatVersion(formatVersion);
         encryptionKeyAgentData.setValidNotBefore(encryptionKeyAgent.getValidNotBefore());
         encryptionKeyAgentData.setValidNotAfter(encryptionKeyAgent.getValidNotAfter());
+        encryptionKeyAgentData.setBlockSize(encryptionKeyAgent.getNumberOfBlocks() > 1 ? encryptionKeyAgent.getBlockSize() : 0);
 
-        List<byte[]> publicKey = new ArrayList<byte[]>();
-        for (Element e : encryptionKeyAgent.getPublicKey()) {
-            publicKey.add(e.toBytes());
-        }
-        encryptionKeyAgentData.setPublicKey(publicKey);
+        encryptionKeyAgentData.setPublicKey(publicKeyToData(encryptionKeyAgent.getPublicKey()));
+        encryptionKeyAgentData.setE(encryptionKeyAgent.getEElem().toBytes());
 
         return encryptionKeyAgentData;
     }
@@ -70,16 +106,31 @@ public class Serializer {
 
     /* --- Key Agent Builder --- */
     public static KeyAgentBuilderData keyAgentBuilderToData(KeyAgentBuilder keyAgentBuilder) {
-        KeyAgentBuilderData keyAgentBuilderData = new KeyAgentBuilderData();
-        keyAgentBuilderData.setValidNotBefore(keyAgentBuilder.getValidNotBefore());
-        keyAgentBuilderData.setValidNotAfter(keyAgentBuilder.getValidNotAfter());
-        keyAgentBuilderData.setA(keyAgentBuilder.getaElem().toBytes());
-        keyAgentBuilderData.setG(keyAgentBuilder.getgElem().toBytes());
-        keyAgentBuilderData.setMaximumNumberOfDecryptionKeyAgents(keyAgentBuilder
-                .getMaximumNumberOfDecryptionKeyAgents());
-        keyAgentBuilderData.setMsk(keyAgentBuilder.getMskElem().toBytes());
-
-        return keyAgentBuilderData;
+        // The master secret and the validity of one rotation (see KeyAgentBuilder#rotateMasterSecret)
+        synchronized (keyAgentBuilder) {
+            KeyAgentBuilderData keyAgentBuilderData = new KeyAgentBuilderData();
+            keyAgentBuilderData.setPairingIdentifier(PairingRegistry.getPairingIdentifier(keyAgentBuilder.getPairing()));
+            keyAgentBuilderData.setFormatVersion(formatVersion);
+            keyAgentBuilderData.setValidNotBefore(keyAgentBuilder.getValidNotBefore());
+            keyAgentBuilderData.setValidNotAfter(keyAgentBuilder.getValidNotAfter());
+            keyAgentBuilderData.setA(keyAgentBuilder.getaElem().toBytes());
+            keyAgentBuilderData.setG(elementToData(keyAgentBuilder.getgElem()));
+            keyAgentBuilderData.setMaximumNumberOfDecryptionKeyAgents(keyAgentBuilder
+                    .getMaximumNumberOfDecryptionKeyAgents());
+            keyAgentBuilderData.setMsk(keyAgentBuilder.getMskElem().toBytes());
+
+            if (keyAgentBuilder.isPartitioned()) {
+                keyAgentBuilderData.setBlockSize(keyAgentBuilder.getBlockSize());
+
+                List<byte[]> blockMsks = new ArrayList<byte[]>();
+                for (Element blockMskElem : keyAgentBuilder.getMskElems()) {
+                    blockMsks.add(blockMskElem.toBytes());
+                }
+                keyAgentBuilderData.setBlockMsks(blockMsks);
+            }
+
+            return keyAgentBuilderData;
+        }
     }
     public static String keyAgentBuilderToJsonString(KeyAgentBuilder keyAgentBuilder) {
         try {
@@ -90,6 +141,15 @@ public class Serializer {
         return null;
     }
 
+    public static String keyAgentBuilderDataToJsonString(KeyAgentBuilderData keyAgentBuilderData) {
+        try {
+            return mapper.writeValueAsString(keyAgentBuilderData);
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     /* --- Tenant Data --- */
     public static String tenantDataToJsonString(TenantData tenantData) {
         try {
@@ -123,8 +183,21 @@ public class Serializer {
     /* --- Encryption Header --- */
     public static EncryptionHeaderData encryptionHeaderToEncryptionKeyHeaderData(EncryptionHeader encryptionHeader) {
         EncryptionHeaderData encryptionHeaderData = new EncryptionHeaderData();
-        encryptionHeaderData.setC0(encryptionHeader.getC0Elem().toBytes());
-        encryptionHeaderData.setC1(encryptionHeader.getC1Elem().toBytes());
+        encryptionHeaderData.setPairingIdentifier(PairingRegistry.getPairingIdentifier(encryptionHeader.getC0Elem().getField()));
+        encryptionHeaderData.setFormatVersion(formatVersion);
+        encryptionHeaderData.setC0(elementToData(encryptionHeader.getC0Elem()));
+
+        if (encryptionHeader.getC1Elems() != null) {
+            // Partitioned scheme: one C1 per block with receivers
+            List<byte[]> c1s = new ArrayList<byte[]>();
+            for (Element c1Elem : encryptionHeader.getC1Elems()) {
+                c1s.add(elementToData(c1Elem));
+            }
+            encryptionHeaderData.setC1s(c1s);
+        } else {
+            encryptionHeaderData.setC1(elementToData(encryptionHeader.getC1Elem()));
+        }
+        encryptionHeaderData.setRanges(encryptionHeader.getRanges());
 
         return encryptionHeaderData;
     }
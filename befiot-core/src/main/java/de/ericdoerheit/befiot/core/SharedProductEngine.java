@@ -0,0 +1,350 @@
+package de.ericdoerheit.befiot.core;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the products base * prod_{j in S} factor(j) of a fixed collection of active receiver sets S (e.g. the
+ * floors, buildings and device classes a gateway encrypts to) with shared sub-products.
+ *
+ * The plan is built once for the active receiver sets: the receivers are grouped by the receiver sets they belong to,
+ * so that each group is multiplied once for all receiver sets which contain it. Then the pair of sub-products which
+ * occurs in most receiver sets is merged into a new sub-product as long as a pair is shared by at least two receiver
+ * sets. Finding the minimum number of multiplications is NP-hard. The plan is a greedy heuristic without a bound on
+ * its distance to the minimum, it only guarantees that it never needs more multiplications than computing each
+ * product from scratch. The savings depend on the overlap of the receiver sets and are measured instead, see
+ * {@link #getPlannedMultiplications()} and {@link #getMultiplicationsSaved()}: three nested receiver sets of 8, 12
+ * and 16 receivers need 16 instead of 8 + 12 + 16 multiplications, disjoint receiver sets share nothing.
+ *
+ * Building the plan is not cheap: each merge rescans all pairs of nodes in every receiver set, so it takes
+ * O(merges * sets * k^2) for k nodes per receiver set. It is meant for a few receiver sets which change rarely.
+ *
+ * The computed sub-products are kept in a bounded LRU cache. Sub-products which are evicted are recomputed from
+ * their parts on demand.
+ */
+public abstract class SharedProductEngine {
+
+    public static final int DEFAULT_MAXIMUM_CACHED_ELEMENTS = 256;
+
+    // Plan node which is the base element or a factor element (leaf) or the product of two nodes
+    private static final int BASE = -1;
+
+    // Plan of the active receiver sets, replaced as a whole so that running products keep using their plan
+    private List<int[]> nodes = new ArrayList<int[]>();
+    private Map<ReceiverSet, Integer> roots = new HashMap<ReceiverSet, Integer>();
+    private Map<ReceiverSet, Integer> numberOfFactors = new HashMap<ReceiverSet, Integer>();
+    // Incremented when the plan or the factors change, sub-products of another generation are not cached
+    private long generation;
+
+    private int maximumCachedElements;
+    private final LinkedHashMap<Integer, Element> subProducts;
+
+    private long products;
+    private long multiplications;
+    private long naiveMultiplications;
+
+    /**
+     * @param maximumCachedElements Maximum number of sub-products which are kept, 0 recomputes them for each product
+     */
+    public SharedProductEngine(int maximumCachedElements) {
+        this.maximumCachedElements = maximumCachedElements;
+        this.subProducts = new LinkedHashMap<Integer, Element>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Element> eldest) {
+                return size() > SharedProductEngine.this.maximumCachedElements;
+            }
+        };
+    }
+
+    /**
+     * Returns the element the products start with.
+     * @return
+     */
+    protected abstract Element baseElement();
+
+    /**
+     * Returns the factor of the given receiver or null if the receiver does not contribute to the products.
+     * @param receiverId
+     * @return
+     */
+    protected abstract Element factorElement(int receiverId);
+
+    /**
+     * Replaces the active receiver sets and builds the plan of shared sub-products for them. The cached sub-products
+     * of the previous receiver sets are discarded.
+     * @param receiverSets
+     */
+    public synchronized void setReceiverSets(Collection<ReceiverSet> receiverSets) {
+        nodes = new ArrayList<int[]>();
+        roots = new HashMap<ReceiverSet, Integer>();
+        numberOfFactors = new HashMap<ReceiverSet, Integer>();
+        subProducts.clear();
+        generation++;
+
+        List<ReceiverSet> sets = new ArrayList<ReceiverSet>(new LinkedHashSet<ReceiverSet>(receiverSets));
+
+        // Leaf of the base which is part of every product and one leaf per contributing receiver
+        int baseNode = addNode(new int[]{BASE});
+        Map<Integer, Integer> leafNodes = new HashMap<Integer, Integer>();
+        Map<Integer, BitSet> signatures = new LinkedHashMap<Integer, BitSet>();
+        BitSet allSets = new BitSet();
+        allSets.set(0, sets.size());
+        signatures.put(baseNode, allSets);
+
+        for (int s = 0; s < sets.size(); s++) {
+            int factors = 0;
+            for (int id : sets.get(s).ids()) {
+                if (factorElement(id) == null) {
+                    continue;
+                }
+                factors++;
+
+                Integer leafNode = leafNodes.get(id);
+                if (leafNode == null) {
+                    leafNode = addNode(new int[]{id});
+                    leafNodes.put(id, leafNode);
+                    signatures.put(leafNode, new BitSet());
+                }
+                signatures.get(leafNode).set(s);
+            }
+            numberOfFactors.put(sets.get(s), factors);
+        }
+
+        // Group the leaves by the receiver sets which contain them, each group is multiplied once
+        Map<BitSet, List<Integer>> groups = new LinkedHashMap<BitSet, List<Integer>>();
+        for (Map.Entry<Integer, BitSet> entry : signatures.entrySet()) {
+            List<Integer> group = groups.get(entry.getValue());
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(entry.getValue(), group);
+            }
+            group.add(entry.getKey());
+        }
+
+        List<List<Integer>> setNodes = new ArrayList<List<Integer>>();
+        for (int s = 0; s < sets.size(); s++) {
+            setNodes.add(new ArrayList<Integer>());
+        }
+        for (Map.Entry<BitSet, List<Integer>> group : groups.entrySet()) {
+            int groupNode = addProductNode(group.getValue());
+            BitSet signature = group.getKey();
+            for (int s = signature.nextSetBit(0); s >= 0; s = signature.nextSetBit(s + 1)) {
+                setNodes.get(s).add(groupNode);
+            }
+        }
+
+        mergeSharedPairs(setNodes);
+
+        for (int s = 0; s < sets.size(); s++) {
+            roots.put(sets.get(s), addProductNode(setNodes.get(s)));
+        }
+    }
+
+    /**
+     * Repeatedly replaces the pair of nodes which occurs in most receiver sets by a new node, as long as the pair
+     * occurs in at least two receiver sets. The pairs are counted again after every merge, which costs
+     * O(sets * k^2) per merge for k nodes per receiver set.
+     */
+    private void mergeSharedPairs(List<List<Integer>> setNodes) {
+        while (true) {
+            Map<Long, Integer> pairCounts = new HashMap<Long, Integer>();
+            long bestPair = 0;
+            int bestCount = 1;
+            for (List<Integer> nodesOfSet : setNodes) {
+                for (int i = 0; i < nodesOfSet.size(); i++) {
+                    for (int j = i + 1; j < nodesOfSet.size(); j++) {
+                        long pair = pair(nodesOfSet.get(i), nodesOfSet.get(j));
+                        Integer count = pairCounts.get(pair);
+                        count = count == null ? 1 : count + 1;
+                        pairCounts.put(pair, count);
+                        if (count > bestCount) {
+                            bestPair = pair;
+                            bestCount = count;
+                        }
+                    }
+                }
+            }
+
+            if (bestCount < 2) {
+                return;
+            }
+
+            Integer left = (int) (bestPair >>> 32);
+            Integer right = (int) bestPair;
+            int mergedNode = addNode(new int[]{left, right});
+            for (List<Integer> nodesOfSet : setNodes) {
+                if (nodesOfSet.contains(left) && nodesOfSet.contains(right)) {
+                    nodesOfSet.remove(left);
+                    nodesOfSet.remove(right);
+                    nodesOfSet.add(mergedNode);
+                }
+            }
+        }
+    }
+
+    private static long pair(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    private int addNode(int[] node) {
+        nodes.add(node);
+        return nodes.size() - 1;
+    }
+
+    /**
+     * Adds the product of the given nodes as a balanced tree, so that recomputing an evicted node does not recurse
+     * deeply.
+     */
+    private int addProductNode(List<Integer> parts) {
+        List<Integer> level = new ArrayList<Integer>(parts);
+        while (level.size() > 1) {
+            List<Integer> nextLevel = new ArrayList<Integer>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                nextLevel.add(addNode(new int[]{level.get(i), level.get(i + 1)}));
+            }
+            if (level.size() % 2 == 1) {
+                nextLevel.add(level.get(level.size() - 1));
+            }
+            level = nextLevel;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Returns true if the given receiver set is one of the active receiver sets.
+     * @param receiverSet
+     * @return
+     */
+    public synchronized boolean contains(ReceiverSet receiverSet) {
+        return roots.containsKey(receiverSet);
+    }
+
+    /**
+     * Returns a new element which contains the product of the given active receiver set or null if the receiver set
+     * is not active. The lock is only held to look up and insert sub-products, the multiplications are done outside
+     * of it, so that several threads can compute products at once.
+     * @param receiverSet
+     * @return
+     */
+    public Element product(ReceiverSet receiverSet) {
+        List<int[]> nodes;
+        Integer root;
+        long planGeneration;
+        synchronized (this) {
+            root = roots.get(receiverSet);
+            if (root == null) {
+                return null;
+            }
+
+            products++;
+            naiveMultiplications += numberOfFactors.get(receiverSet);
+            nodes = this.nodes;
+            planGeneration = generation;
+        }
+        return value(nodes, root, planGeneration).duplicate();
+    }
+
+    /**
+     * Returns the value of the node which must not be changed.
+     */
+    private Element value(List<int[]> nodes, int node, long planGeneration) {
+        int[] parts = nodes.get(node);
+        if (parts.length == 1) {
+            return parts[0] == BASE ? baseElement() : factorElement(parts[0]);
+        }
+
+        Element productElem;
+        synchronized (this) {
+            productElem = generation == planGeneration ? subProducts.get(node) : null;
+        }
+        if (productElem == null) {
+            productElem = value(nodes, parts[0], planGeneration).duplicate()
+                    .mul(value(nodes, parts[1], planGeneration)).getImmutable();
+            synchronized (this) {
+                multiplications++;
+                if (maximumCachedElements > 0 && generation == planGeneration) {
+                    subProducts.put(node, productElem);
+                }
+            }
+        }
+        return productElem;
+    }
+
+    /**
+     * Discards the cached sub-products. Must be called when the base or the factors change.
+     */
+    public synchronized void clear() {
+        subProducts.clear();
+        generation++;
+    }
+
+    /**
+     * Number of multiplications of the plan, i.e. the multiplications to compute all active products once.
+     */
+    public synchronized int getPlannedMultiplications() {
+        int plannedMultiplications = 0;
+        for (int[] node : nodes) {
+            if (node.length == 2) {
+                plannedMultiplications++;
+            }
+        }
+        return plannedMultiplications;
+    }
+
+    /**
+     * Number of multiplications which were computed.
+     */
+    public synchronized long getMultiplications() {
+        return multiplications;
+    }
+
+    /**
+     * Number of multiplications which computing each product from scratch would have needed.
+     */
+    public synchronized long getNaiveMultiplications() {
+        return naiveMultiplications;
+    }
+
+    public synchronized long getMultiplicationsSaved() {
+        return naiveMultiplications - multiplications;
+    }
+
+    public synchronized long getProducts() {
+        return products;
+    }
+
+    public synchronized int size() {
+        return subProducts.size();
+    }
+
+    public synchronized int getMaximumCachedElements() {
+        return maximumCachedElements;
+    }
+
+    public synchronized void setMaximumCachedElements(int maximumCachedElements) {
+        this.maximumCachedElements = maximumCachedElements;
+        while (subProducts.size() > Math.max(maximumCachedElements, 0)) {
+            subProducts.remove(subProducts.keySet().iterator().next());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SharedProductEngine{" +
+                "receiverSets=" + roots.size() +
+                ", size=" + subProducts.size() +
+                ", maximumCachedElements=" + maximumCachedElements +
+                ", products=" + products +
+                ", multiplications=" + multiplications +
+                ", multiplicationsSaved=" + (naiveMultiplications - multiplications) +
+                '}';
+    }
+}
@@ -0,0 +1,263 @@
+package de.ericdoerheit.befiot.core;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Lazy enumerations of the subsets of a set of ids. The subsets are computed while they are iterated instead of being
+ * held in memory, each subset is a new array with the ids in the order of the given set (sorted if the set is sorted).
+ */
+public class Subsets {
+
+    // Enumerated subsets are counted with a long, random subsets are not limited
+    public static final int MAXIMUM_NUMBER_OF_IDS = 62;
+
+    /**
+     * Returns all 2^n subsets of the given ids in Gray-code order: the first subset is empty and each following subset
+     * adds or removes exactly one id.
+     * @param ids
+     * @return
+     */
+    public static Iterable<int[]> grayCode(final int[] ids) {
+        checkNumberOfIds(ids);
+        return new Iterable<int[]>() {
+            @Override
+            public Iterator<int[]> iterator() {
+                return new GrayCodeIterator(ids);
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over all 2^n subsets of the given ids in Gray-code order.
+     * @param ids
+     * @return
+     * @see #grayCode(int[])
+     */
+    public static GrayCodeIterator grayCodeIterator(int[] ids) {
+        checkNumberOfIds(ids);
+        return new GrayCodeIterator(ids);
+    }
+
+    /**
+     * Returns all subsets with minimumSize to maximumSize ids, ordered by size and lexicographically within a size.
+     * @param ids
+     * @param minimumSize
+     * @param maximumSize
+     * @return
+     */
+    public static Iterable<int[]> ofSize(final int[] ids, final int minimumSize, final int maximumSize) {
+        if (minimumSize < 0 || minimumSize > maximumSize) {
+            throw new IllegalArgumentException("Sizes must satisfy 0 <= minimumSize <= maximumSize.");
+        }
+        final int[] copiedIds = Arrays.copyOf(ids, ids.length);
+        final int maximumSubsetSize = Math.min(maximumSize, ids.length);
+
+        return new Iterable<int[]>() {
+            @Override
+            public Iterator<int[]> iterator() {
+                return new Iterator<int[]>() {
+                    private int size = minimumSize;
+                    // Positions of the ids of the next subset, null if there is none
+                    private int[] positions = firstPositions(size);
+
+                    @Override
+                    public boolean hasNext() {
+                        return positions != null;
+                    }
+
+                    @Override
+                    public int[] next() {
+                        if (positions == null) {
+                            throw new NoSuchElementException();
+                        }
+
+                        int[] subset = new int[positions.length];
+                        for (int i = 0; i < positions.length; i++) {
+                            subset[i] = copiedIds[positions[i]];
+                        }
+
+                        advance();
+                        return subset;
+                    }
+
+                    private int[] firstPositions(int size) {
+                        if (size > maximumSubsetSize) {
+                            return null;
+                        }
+                        int[] positions = new int[size];
+                        for (int i = 0; i < size; i++) {
+                            positions[i] = i;
+                        }
+                        return positions;
+                    }
+
+                    private void advance() {
+                        // Rightmost position which can be moved to the right
+                        int i = size - 1;
+                        while (i >= 0 && positions[i] == copiedIds.length - size + i) {
+                            i--;
+                        }
+
+                        if (i < 0) {
+                            size++;
+                            positions = firstPositions(size);
+                            return;
+                        }
+
+                        positions[i]++;
+                        for (int j = i + 1; j < size; j++) {
+                            positions[j] = positions[j - 1] + 1;
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the given number of subsets drawn uniformly at random (each id is contained with probability 1/2).
+     * Subsets can be returned more than once. There is no limit on the number of ids, so that large systems can be
+     * sampled where enumerating all subsets is infeasible.
+     * @param ids
+     * @param numberOfSubsets
+     * @param random
+     * @return
+     */
+    public static Iterable<int[]> random(final int[] ids, final long numberOfSubsets, final Random random) {
+        final int[] copiedIds = Arrays.copyOf(ids, ids.length);
+
+        return new Iterable<int[]>() {
+            @Override
+            public Iterator<int[]> iterator() {
+                return new Iterator<int[]>() {
+                    private long returnedSubsets = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return returnedSubsets < numberOfSubsets;
+                    }
+
+                    @Override
+                    public int[] next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        returnedSubsets++;
+
+                        // One random bit per id
+                        int[] subset = new int[copiedIds.length];
+                        int length = 0;
+                        int bits = 0;
+                        for (int i = 0; i < copiedIds.length; i++) {
+                            if (i % 32 == 0) {
+                                bits = random.nextInt();
+                            }
+                            if ((bits & (1 << (i % 32))) != 0) {
+                                subset[length++] = copiedIds[i];
+                            }
+                        }
+                        return Arrays.copyOf(subset, length);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private static void checkNumberOfIds(int[] ids) {
+        if (ids.length > MAXIMUM_NUMBER_OF_IDS) {
+            throw new IllegalArgumentException("At most " + MAXIMUM_NUMBER_OF_IDS + " ids are supported.");
+        }
+    }
+
+    /**
+     * Returns the ids whose positions are set in the given mask.
+     */
+    private static int[] subset(int[] ids, long mask) {
+        int[] subset = new int[Long.bitCount(mask)];
+        int j = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if ((mask & (1L << i)) != 0) {
+                subset[j++] = ids[i];
+            }
+        }
+        return subset;
+    }
+
+    /**
+     * Iterator over the subsets in Gray-code order which also tells which id was added or removed by the last step,
+     * e.g. to update a product incrementally.
+     */
+    public static class GrayCodeIterator implements Iterator<int[]> {
+        private final int[] ids;
+        private final long numberOfSubsets;
+
+        private long index = 0;
+        private long mask = 0;
+
+        private int changedId;
+        private boolean added;
+
+        private GrayCodeIterator(int[] ids) {
+            this.ids = Arrays.copyOf(ids, ids.length);
+            this.numberOfSubsets = 1L << ids.length;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < numberOfSubsets;
+        }
+
+        @Override
+        public int[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            if (index > 0) {
+                // The i-th step flips the position of the lowest set bit of i
+                int position = Long.numberOfTrailingZeros(index);
+                mask ^= 1L << position;
+                changedId = ids[position];
+                added = (mask & (1L << position)) != 0;
+            }
+            index++;
+
+            return subset(ids, mask);
+        }
+
+        /**
+         * Returns the id which was added or removed by the last call of {@link #next()}. Is undefined for the first
+         * (empty) subset.
+         * @return
+         */
+        public int getChangedId() {
+            return changedId;
+        }
+
+        /**
+         * Returns true if the last call of {@link #next()} added {@link #getChangedId()}, false if it removed it.
+         * @return
+         */
+        public boolean isAdded() {
+            return added;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -11,6 +11,9 @@ public class DecryptionKeyAgentData {
     private long validNotAfter;
 
     private int pairingIdentifier;
+    // Encoding of the G1 elements (see ElementEncoding)
+    private int formatVersion;
+    private int blockSize;
     private int id;
     private byte[] privateKey;
     private List<byte[]> publicKey;
@@ -42,6 +45,22 @@ public class DecryptionKeyAgentData {
         this.pairingIdentifier = pairingIdentifier;
     }
 
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
     public int getId() {
         return id;
     }
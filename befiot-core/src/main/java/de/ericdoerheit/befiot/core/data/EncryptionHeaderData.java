@@ -1,17 +1,40 @@
 package de.ericdoerheit.befiot.core.data;
 
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by ericdorheit on 08/02/16.
  */
 public class EncryptionHeaderData {
+    private int pairingIdentifier;
+    // Encoding of the G1 elements (see ElementEncoding)
+    private int formatVersion;
     private byte[] c0;
     private byte[] c1;
+    private List<byte[]> c1s;
+    // Receiver ids as pairs of the first and the last id of each range, optional
+    private int[] ranges;
 
     public EncryptionHeaderData() {
     }
 
+    public int getPairingIdentifier() {
+        return pairingIdentifier;
+    }
+
+    public void setPairingIdentifier(int pairingIdentifier) {
+        this.pairingIdentifier = pairingIdentifier;
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
     public byte[] getC0() {
         return c0;
     }
@@ -28,11 +51,31 @@ public class EncryptionHeaderData {
         this.c1 = c1;
     }
 
+    public List<byte[]> getC1s() {
+        return c1s;
+    }
+
+    public void setC1s(List<byte[]> c1s) {
+        this.c1s = c1s;
+    }
+
+    public int[] getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(int[] ranges) {
+        this.ranges = ranges;
+    }
+
     @Override
     public String toString() {
         return "EncryptionHeaderData{" +
-                "c0=" + Arrays.hashCode(c0) +
+                "pairingIdentifier=" + pairingIdentifier +
+                ", formatVersion=" + formatVersion +
+                ", c0=" + Arrays.hashCode(c0) +
                 ", c1=" + Arrays.hashCode(c1) +
+                ", c1s=" + (c1s != null ? c1s.size() : c1s) +
+                ", ranges=" + Arrays.toString(ranges) +
                 '}';
     }
 }
@@ -15,7 +15,12 @@ public class EncryptionKeyAgentData {
     private byte[] digitalSignature;
 
     private int pairingIdentifier;
+    // Encoding of the G1 elements (see ElementEncoding)
+    private int formatVersion;
+    private int blockSize;
     private List<byte[]> publicKey;
+    // Precomputed GT element e(g_B, g_1), optional
+    private byte[] e;
 
     public EncryptionKeyAgentData() {
     }
@@ -68,6 +73,22 @@ public class EncryptionKeyAgentData {
         this.pairingIdentifier = pairingIdentifier;
     }
 
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
     public List<byte[]> getPublicKey() {
         return publicKey;
     }
@@ -75,4 +96,12 @@ public class EncryptionKeyAgentData {
     public void setPublicKey(List<byte[]> publicKey) {
         this.publicKey = publicKey;
     }
+
+    public byte[] getE() {
+        return e;
+    }
+
+    public void setE(byte[] e) {
+        this.e = e;
+    }
 }
@@ -1,5 +1,6 @@
 package de.ericdoerheit.befiot.core.data;
 
+import java.util.List;
 
 /**
  * Created by ericdorheit on 03/02/16.
@@ -10,10 +11,14 @@ public class KeyAgentBuilderData {
     private long validNotAfter;
 
     private int pairingIdentifier;
+    // Encoding of the G1 elements (see ElementEncoding)
+    private int formatVersion;
     private int maximumNumberOfDecryptionKeyAgents;
+    private int blockSize;
     private byte[] a;
     private byte[] g;
     private byte[] msk;
+    private List<byte[]> blockMsks;
 
     public KeyAgentBuilderData() {
     }
@@ -50,6 +55,22 @@ public class KeyAgentBuilderData {
         this.maximumNumberOfDecryptionKeyAgents = maximumNumberOfDecryptionKeyAgents;
     }
 
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
     public byte[] getA() {
         return a;
     }
@@ -73,4 +94,12 @@ public class KeyAgentBuilderData {
     public void setMsk(byte[] msk) {
         this.msk = msk;
     }
+
+    public List<byte[]> getBlockMsks() {
+        return blockMsks;
+    }
+
+    public void setBlockMsks(List<byte[]> blockMsks) {
+        this.blockMsks = blockMsks;
+    }
 }
@@ -9,8 +9,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Array;
-import static de.ericdoerheit.befiot.core.Util.powerset;
+import java.math.BigInteger;
+import static de.ericdoerheit.befiot.core.Subsets.grayCode;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -43,9 +48,7 @@ public class EncryptionDecryptionTest {
             }
             log.debug(arrayAsString(ids));
 
-            List<int[]> subsets = powerset(ids);
-
-            for (int[] subset : subsets){
+            for (int[] subset : grayCode(ids)){
                 log.debug("Subset: {}", Arrays.toString(subset));
                 encryptionKeyAgent.next(subset);
 
@@ -64,6 +67,491 @@ public class EncryptionDecryptionTest {
     }
 
 
+    @Test
+    public void productPairingKeyEqualsPairingQuotientKey() {
+        int n = 4;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+
+        int[] ids = new int[]{1, 2, 3, 4};
+        for (int[] subset : grayCode(ids)) {
+            Arrays.sort(subset);
+            encryptionKeyAgent.next(subset);
+            EncryptionHeader header = encryptionKeyAgent.getHeader();
+
+            for (int id : subset) {
+                DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(id);
+
+                decryptionKeyAgent.setProductPairing(true);
+                Element productPairingKey = decryptionKeyAgent.getKey(header, subset);
+                decryptionKeyAgent.setProductPairing(false);
+                Element pairingQuotientKey = decryptionKeyAgent.getKey(header, subset);
+
+                assertArrayEquals(pairingQuotientKey.toBytes(), productPairingKey.toBytes());
+                assertArrayEquals(encryptionKeyAgent.getKey().toBytes(), productPairingKey.toBytes());
+            }
+        }
+    }
+
+    @Test
+    public void preprocessedPairingKeyEqualsEncryptedKey() {
+        int n = 4;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+
+        // The preprocessing of g_id is computed by the first call and reused by all later calls
+        DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(2);
+        decryptionKeyAgent.setProductPairing(false);
+        assertFalse(decryptionKeyAgent.isProductPairing());
+
+        int[] ids = new int[]{1, 2, 3, 4};
+        for (int round = 0; round < 2; round++) {
+            for (int[] subset : grayCode(ids)) {
+                Arrays.sort(subset);
+                if (Arrays.binarySearch(subset, 2) < 0) {
+                    continue;
+                }
+                encryptionKeyAgent.next(subset);
+                assertArrayEquals(encryptionKeyAgent.getKey().toBytes(),
+                        decryptionKeyAgent.getKey(encryptionKeyAgent.getHeader(), subset).toBytes());
+            }
+        }
+    }
+
+    @Test
+    public void cachedProductKeyEqualsUncachedProductKey() {
+        int n = 5;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        DecryptionKeyAgent cachedDecryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(1);
+        DecryptionKeyAgent uncachedDecryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(1);
+        cachedDecryptionKeyAgent.setProductCacheSize(4);
+        uncachedDecryptionKeyAgent.setProductCacheSize(0);
+
+        // The second round repeats the 16 receiver sets which contain id 1, so the caches see repeated sets as well
+        // as neighbouring sets
+        for (int round = 0; round < 2; round++) {
+            for (int[] subset : grayCode(new int[]{1, 2, 3, 4, 5})) {
+                // binarySearch needs sorted ids
+                Arrays.sort(subset);
+                if (Arrays.binarySearch(subset, 1) < 0) {
+                    continue;
+                }
+
+                encryptionKeyAgent.next(subset);
+                EncryptionHeader header = encryptionKeyAgent.getHeader();
+
+                Element cachedKey = cachedDecryptionKeyAgent.getKey(header, subset);
+                Element uncachedKey = uncachedDecryptionKeyAgent.getKey(header, subset);
+                assertArrayEquals(encryptionKeyAgent.getKey().toBytes(), uncachedKey.toBytes());
+                assertArrayEquals(uncachedKey.toBytes(), cachedKey.toBytes());
+            }
+        }
+
+        ReceiverSetProductCache productCache = cachedDecryptionKeyAgent.getProductCache();
+        log.debug("{}", productCache);
+        assertTrue(productCache.getDeltaHits() > 0);
+        assertTrue(productCache.size() <= 4);
+        assertEquals(0, uncachedDecryptionKeyAgent.getProductCache().size());
+
+        log.debug("{}", encryptionKeyAgent.getProductCache(0));
+        assertTrue(encryptionKeyAgent.getProductCache(0).getHits() > 0);
+        assertTrue(encryptionKeyAgent.getProductCacheHitRate() > 0);
+        assertTrue(encryptionKeyAgent.getProductCacheSize() <= EncryptionKeyAgent.DEFAULT_PRODUCT_CACHE_SIZE);
+    }
+
+    @Test
+    public void partitionedEncryptedKeyEqualsDecryptedKey() {
+        // Three blocks of two ids where the last block is only partially used
+        int n = 5;
+        int blockSize = 2;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n, blockSize);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        assertEquals(3, encryptionKeyAgent.getNumberOfBlocks());
+        assertEquals(2*blockSize+1+3, encryptionKeyAgent.getPublicKey().size());
+
+        ArrayList<DecryptionKeyAgent> decryptionKeyAgents = new ArrayList<DecryptionKeyAgent>();
+        for (int i = 1; i <= n; i++) {
+            decryptionKeyAgents.add(keyAgentBuilder.getDecryptionKeyAgent(i));
+        }
+
+        for (int[] subset : grayCode(new int[]{1, 2, 3, 4, 5})) {
+            if (subset.length == 0) {
+                continue;
+            }
+            // binarySearch needs sorted ids
+            Arrays.sort(subset);
+
+            encryptionKeyAgent.next(subset);
+            Element encryptedKey = encryptionKeyAgent.getKey();
+            EncryptionHeader header = encryptionKeyAgent.getHeader();
+
+            for (DecryptionKeyAgent decryptionKeyAgent : decryptionKeyAgents) {
+                if (Arrays.binarySearch(subset, decryptionKeyAgent.getId()) >= 0) {
+                    assertArrayEquals(encryptedKey.toBytes(), decryptionKeyAgent.getKey(header, subset).toBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rotatedMasterSecretKeepsPublicKeySequence() {
+        int n = 4;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        List<Element> publicKey = new ArrayList<Element>(keyAgentBuilder.getEncryptionKeyAgent().getPublicKey());
+        DecryptionKeyAgent oldDecryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(1);
+        Element eElem = keyAgentBuilder.getEncryptionKeyAgent().getEElem();
+
+        keyAgentBuilder.rotateMasterSecret(validNotBefore + 1, validNotAfter + 1);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        List<Element> rotatedPublicKey = encryptionKeyAgent.getPublicKey();
+
+        // e(g_B, g_1) and the fixed-base tables are taken over from the previous Encryption Key Agent
+        assertTrue(eElem.isEqual(encryptionKeyAgent.getEElem()));
+        assertTrue(encryptionKeyAgent.hasPowTables());
+
+        for (int i = 0; i <= 2*n; i++) {
+            assertTrue(publicKey.get(i).isEqual(rotatedPublicKey.get(i)));
+        }
+        assertFalse(publicKey.get(2*n+1).isEqual(rotatedPublicKey.get(2*n+1)));
+        assertEquals(validNotBefore + 1, encryptionKeyAgent.getValidNotBefore());
+
+        int[] ids = new int[]{1, 3};
+        encryptionKeyAgent.next(ids);
+        Element encryptedKey = encryptionKeyAgent.getKey();
+        EncryptionHeader header = encryptionKeyAgent.getHeader();
+
+        assertArrayEquals(encryptedKey.toBytes(), keyAgentBuilder.getDecryptionKeyAgent(1).getKey(header, ids).toBytes());
+        assertFalse(Arrays.equals(encryptedKey.toBytes(), oldDecryptionKeyAgent.getKey(header, ids).toBytes()));
+    }
+
+    @Test
+    public void bulkDecryptionKeyAgentsEqualSingleDecryptionKeyAgents() {
+        int n = 40;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+
+        int id = 3;
+        Iterator<DecryptionKeyAgent> decryptionKeyAgents = keyAgentBuilder.getDecryptionKeyAgents(3, n);
+        while (decryptionKeyAgents.hasNext()) {
+            DecryptionKeyAgent decryptionKeyAgent = decryptionKeyAgents.next();
+            assertEquals(id, decryptionKeyAgent.getId());
+            assertTrue(decryptionKeyAgent.getPrivateKey().isEqual(keyAgentBuilder.getDecryptionKeyAgent(id).getPrivateKey()));
+            assertSame(keyAgentBuilder.getEncryptionKeyAgent().getPublicKey(), decryptionKeyAgent.getPublicKey());
+            id++;
+        }
+        assertEquals(n + 1, id);
+    }
+
+    @Test
+    public void receiverSetEncryptedKeyEqualsDecryptedKey() {
+        int n = 6;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+
+        ReceiverSet receiverSet = ReceiverSet.of(5, 2, 3, 2);
+        assertArrayEquals(new int[]{2, 3, 5}, receiverSet.toArray());
+        assertTrue(receiverSet.contains(3));
+        assertFalse(receiverSet.contains(4));
+        assertEquals(ReceiverSet.of(2, 5), receiverSet.minus(ReceiverSet.of(3, 6)));
+        assertEquals(ReceiverSet.of(2, 3, 5, 6), receiverSet.union(ReceiverSet.of(3, 6)));
+        assertEquals(ReceiverSet.of(3, 5, 2).hash64(), receiverSet.hash64());
+        assertFalse(ReceiverSet.of(2, 3).hash64() == receiverSet.hash64());
+
+        Encapsulation encapsulation = keyAgentBuilder.getEncryptionKeyAgent().encapsulate(receiverSet);
+        for (int id = 1; id <= n; id++) {
+            Element decryptedKey = keyAgentBuilder.getDecryptionKeyAgent(id).decapsulate(encapsulation.getHeader(), receiverSet);
+            if (receiverSet.contains(id)) {
+                assertArrayEquals(encapsulation.getKeyBytes(), decryptedKey.toBytes());
+            } else {
+                assertNull(decryptedKey);
+            }
+        }
+    }
+
+    @Test
+    public void sharedProductKeyEqualsDecryptedKey() {
+        int n = 20;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(1);
+
+        // Floor, building and site which contain each other
+        List<ReceiverSet> receiverSets = Arrays.asList(ReceiverSet.of(1, 2, 3, 4, 5, 6, 7, 8),
+                ReceiverSet.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12),
+                ReceiverSet.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16));
+        encryptionKeyAgent.setActiveReceiverSets(receiverSets);
+        decryptionKeyAgent.setActiveReceiverSets(receiverSets);
+
+        for (int round = 0; round < 2; round++) {
+            for (ReceiverSet receiverSet : receiverSets) {
+                Encapsulation encapsulation = encryptionKeyAgent.encapsulate(receiverSet);
+                assertArrayEquals(encapsulation.getKeyBytes(),
+                        decryptionKeyAgent.decapsulate(encapsulation.getHeader(), receiverSet).toBytes());
+            }
+        }
+
+        // 16 planned multiplications instead of 8 + 12 + 16 per round
+        SharedProductEngine sharedProductEngine = encryptionKeyAgent.getProductCache(0).getSharedProductEngine();
+        assertEquals(16, sharedProductEngine.getPlannedMultiplications());
+        assertEquals(16, sharedProductEngine.getMultiplications());
+        assertEquals(2 * 36 - 16, encryptionKeyAgent.getMultiplicationsSaved());
+        log.debug("{}", sharedProductEngine);
+    }
+
+    @Test
+    public void rangeKeyEqualsDecryptedKey() {
+        int n = 40;
+        ReceiverSet receiverSet = ReceiverSet.ofRanges(5, 30, 33, 33);
+        assertArrayEquals(new int[]{5, 30, 33, 33}, receiverSet.toRanges());
+        assertEquals(27, receiverSet.size());
+
+        // Basic scheme and partitioned scheme whose range spans three blocks
+        KeyAgentBuilder[] keyAgentBuilders = new KeyAgentBuilder[]{
+                new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n),
+                new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n, 10)};
+
+        for (KeyAgentBuilder keyAgentBuilder : keyAgentBuilders) {
+            EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+            Encapsulation expectedEncapsulation = encryptionKeyAgent.encapsulate(receiverSet);
+
+            encryptionKeyAgent.setRangeMode(true);
+            Encapsulation encapsulation = encryptionKeyAgent.encapsulate(receiverSet);
+            assertNotNull(encryptionKeyAgent.getRangeTable());
+
+            EncryptionHeader header = Deserializer.jsonStringToEncryptionHeader(
+                    Serializer.encryptionHeaderToJsonString(encapsulation.getHeader()));
+            assertArrayEquals(receiverSet.toRanges(), header.getRanges());
+
+            for (int id : new int[]{5, 17, 30, 33, 34}) {
+                DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(id);
+                Element decryptedKey = decryptionKeyAgent.decapsulate(header);
+                if (receiverSet.contains(id)) {
+                    assertArrayEquals(encapsulation.getKeyBytes(), decryptedKey.toBytes());
+                    assertNotNull(decryptionKeyAgent.getRangeTable());
+
+                    // Range products equal the products of the single receivers
+                    EncryptionHeader headerWithoutRanges = new EncryptionHeader(header);
+                    headerWithoutRanges.setRanges(null);
+                    assertArrayEquals(encapsulation.getKeyBytes(),
+                            decryptionKeyAgent.decapsulate(headerWithoutRanges, receiverSet).toBytes());
+                    assertArrayEquals(expectedEncapsulation.getKeyBytes(),
+                            decryptionKeyAgent.decapsulate(expectedEncapsulation.getHeader(), receiverSet).toBytes());
+                } else {
+                    assertNull(decryptedKey);
+                }
+            }
+
+            // Ranges outside 1, ..., n, overlapping ranges and descending ranges are refused
+            for (int[] ranges : new int[][]{{0, 5}, {5, n + 1}, {5, 30, 30, 33}, {33, 33, 5, 30}}) {
+                EncryptionHeader malformedHeader = new EncryptionHeader(header);
+                malformedHeader.setRanges(ranges);
+                try {
+                    keyAgentBuilder.getDecryptionKeyAgent(5).decapsulate(malformedHeader);
+                    fail("Ranges " + Arrays.toString(ranges) + " were accepted.");
+                } catch (IllegalArgumentException e) {
+                    log.debug("Refused ranges {}: {}", Arrays.toString(ranges), e.getMessage());
+                }
+            }
+        }
+
+        try {
+            ReceiverSet.ofRanges(1, Integer.MAX_VALUE);
+            fail("Ranges with too many ids were accepted.");
+        } catch (IllegalArgumentException e) {
+            log.debug("Refused ranges: {}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void batchEncryptedKeysEqualDecryptedKeys() {
+        int n = 4;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+
+        List<int[]> receiverSets = new ArrayList<int[]>();
+        for (int[] subset : grayCode(new int[]{1, 2, 3, 4})) {
+            if (subset.length > 0) {
+                receiverSets.add(subset);
+            }
+        }
+
+        List<Encapsulation> encapsulations = encryptionKeyAgent.nextBatch(receiverSets);
+        assertEquals(receiverSets.size(), encapsulations.size());
+
+        for (int i = 0; i < encapsulations.size(); i++) {
+            Encapsulation encapsulation = encapsulations.get(i);
+            int[] subset = receiverSets.get(i);
+            assertArrayEquals(subset, encapsulation.getIds());
+
+            for (int id : subset) {
+                Element decryptedKey = keyAgentBuilder.getDecryptionKeyAgent(id).getKey(encapsulation.getHeader(), subset);
+                assertArrayEquals(encapsulation.getKeyBytes(), decryptedKey.toBytes());
+            }
+        }
+    }
+
+    @Test
+    public void sharedAgentsEncapsulateAndDecapsulateConcurrently() throws Exception {
+        int n = 6;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        final EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        final DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(3);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 32; i++) {
+                final int[] ids = i % 2 == 0 ? new int[]{1, 3, 5} : new int[]{2, 3, 4, 6};
+                futures.add(executorService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Encapsulation encapsulation = encryptionKeyAgent.encapsulate(ids);
+                        Element decryptedKey = decryptionKeyAgent.decapsulate(encapsulation.getHeader(), ids);
+                        return Arrays.equals(encapsulation.getKeyBytes(), decryptedKey.toBytes());
+                    }
+                }));
+            }
+
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedAgentsComputeProductsConcurrently() throws Exception {
+        int n = 8;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        final EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        final DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(3);
+
+        // All receiver sets with the id 3, two of them active, the others are derived from cached products or computed
+        // from scratch
+        final List<int[]> receiverSets = new ArrayList<int[]>();
+        for (int[] subset : grayCode(new int[]{1, 2, 3, 4, 5, 6, 7, 8})) {
+            Arrays.sort(subset);
+            if (Arrays.binarySearch(subset, 3) >= 0) {
+                receiverSets.add(subset);
+            }
+        }
+        List<ReceiverSet> activeReceiverSets = Arrays.asList(ReceiverSet.of(1, 2, 3, 4), ReceiverSet.of(1, 2, 3, 4, 5, 6));
+        encryptionKeyAgent.setActiveReceiverSets(activeReceiverSets);
+        decryptionKeyAgent.setActiveReceiverSets(activeReceiverSets);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int round = 0; round < 2; round++) {
+                for (final int[] ids : receiverSets) {
+                    futures.add(executorService.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            Encapsulation encapsulation = encryptionKeyAgent.encapsulate(ids);
+                            Element decryptedKey = decryptionKeyAgent.decapsulate(encapsulation.getHeader(), ids);
+                            return Arrays.equals(encapsulation.getKeyBytes(), decryptedKey.toBytes());
+                        }
+                    }));
+                }
+            }
+
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        log.debug("EKA: {}, DKA: {}", encryptionKeyAgent.getProductCache(0), decryptionKeyAgent.getProductCache());
+        assertTrue(encryptionKeyAgent.getProductCache(0).getHits() + encryptionKeyAgent.getProductCache(0).getDeltaHits() > 0);
+        // Two active receiver sets in two rounds
+        assertEquals(4, encryptionKeyAgent.getProductCache(0).getSharedProductEngine().getProducts());
+    }
+
+    @Test
+    public void pooledRandomnessKeyEqualsDecryptedKey() throws InterruptedException {
+        int n = 4;
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(2);
+
+        encryptionKeyAgent.enableRandomnessPool(4);
+        RandomnessPool randomnessPool = encryptionKeyAgent.getRandomnessPool();
+        for (int i = 0; i < 100 && randomnessPool.size() < 4; i++) {
+            Thread.sleep(50);
+        }
+
+        int[] ids = new int[]{1, 2, 4};
+        for (int i = 0; i < 8; i++) {
+            Encapsulation encapsulation = encryptionKeyAgent.encapsulate(ids);
+            assertArrayEquals(encapsulation.getKeyBytes(), decryptionKeyAgent.decapsulate(encapsulation.getHeader(), ids).toBytes());
+        }
+
+        log.debug("{}", randomnessPool);
+        assertTrue(randomnessPool.getHits() > 0);
+        assertEquals(8, randomnessPool.getHits() + randomnessPool.getStarvations());
+
+        // A new public key replaces e(g_n, g_1), the fixed-base tables and the pooled randomness
+        KeyAgentBuilder otherKeyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, Util.getDefaultPairing(), n);
+        DecryptionKeyAgent otherDecryptionKeyAgent = otherKeyAgentBuilder.getDecryptionKeyAgent(2);
+        encryptionKeyAgent.setPublicKey(otherKeyAgentBuilder.getEncryptionKeyAgent().getPublicKey());
+        assertTrue(otherKeyAgentBuilder.getEncryptionKeyAgent().getEElem().isEqual(encryptionKeyAgent.getEElem()));
+        for (int i = 0; i < 8; i++) {
+            Encapsulation encapsulation = encryptionKeyAgent.encapsulate(ids);
+            assertArrayEquals(encapsulation.getKeyBytes(), otherDecryptionKeyAgent.decapsulate(encapsulation.getHeader(), ids).toBytes());
+        }
+        assertTrue(encryptionKeyAgent.hasPowTables());
+
+        encryptionKeyAgent.disableRandomnessPool();
+        assertNull(encryptionKeyAgent.getRandomnessPool());
+    }
+
+    @Test
+    public void parallelPublicKeyEqualsSequentialPublicKey() {
+        Pairing pairing = Util.getDefaultPairing();
+        Element gElem = pairing.getG1().newRandomElement();
+        Element aElem = pairing.getZr().newRandomElement();
+        int n = PublicKeyGenerator.PARALLEL_GENERATION_THRESHOLD;
+
+        List<Element> sequentialPublicKey = new PublicKeyGenerator(pairing, 1).generate(gElem, aElem, n);
+        List<Element> parallelPublicKey = new PublicKeyGenerator(pairing, 4).generate(gElem, aElem, n);
+
+        assertEquals(2*n+1, parallelPublicKey.size());
+        for (int i = 0; i < sequentialPublicKey.size(); i++) {
+            assertArrayEquals(sequentialPublicKey.get(i).toBytes(), parallelPublicKey.get(i).toBytes());
+        }
+    }
+
+    @Test
+    public void fixedBasePowTableEqualsPow() {
+        Pairing pairing = Util.getDefaultPairing();
+        int bits = pairing.getZr().getOrder().bitLength();
+        Element gElem = pairing.getG1().newRandomElement();
+
+        for (int windowSize = 1; windowSize <= 6; windowSize++) {
+            FixedBasePowTable powTable = new FixedBasePowTable(gElem, bits, windowSize);
+
+            for (int i = 0; i < 10; i++) {
+                Element t = pairing.getZr().newRandomElement();
+                assertTrue(gElem.duplicate().pow(t.toBigInteger()).isEqual(powTable.pow(t.toBigInteger())));
+            }
+            assertTrue(gElem.duplicate().pow(BigInteger.ZERO).isEqual(powTable.pow(BigInteger.ZERO)));
+        }
+    }
+
+    @Test
+    public void pairingBackendMeasurement() {
+        PairingBackend activeBackend = PairingBackends.getActiveBackend();
+        assertTrue(activeBackend.isAvailable());
+
+        PairingBackends.Measurement measurement = PairingBackends.measure(new JpbcPairingBackend(),
+                PairingRegistry.getPairingParameters(PairingRegistry.DEFAULT_PAIRING_IDENTIFIER));
+        log.debug("Active backend: {}, pure Java: {}", activeBackend.getName(), measurement);
+        assertEquals(JpbcPairingBackend.NAME, measurement.getBackendName());
+        assertTrue(measurement.getPairingNanos() > 0);
+        assertTrue(measurement.getG1PowNanos() > 0);
+    }
+
     @Ignore
     @Test
     public void printDecryptionKeyAgentSizes() {
@@ -84,27 +572,60 @@ public class EncryptionDecryptionTest {
     }
 
     @Test
-    public void printPowerSet() {
-        int[] testSet = new int[]{1, 2, 3, 4};
-        List<int[]> pS = powerset(testSet);
-        log.debug("{} Elements: {}", pS.size(), listAsString(pS));
-    }
+    public void grayCodeSubsetsDifferInOneId() {
+        int[] ids = new int[]{1, 2, 3, 4};
+        Set<String> subsets = new HashSet<String>();
 
-    private String listAsString(List<int[]> list) {
-        String result = "{ ";
+        Subsets.GrayCodeIterator iterator = Subsets.grayCodeIterator(ids);
+        int[] previousSubset = iterator.next();
+        assertEquals(0, previousSubset.length);
+        subsets.add(Arrays.toString(previousSubset));
 
-        int i = 0;
-        for (int[] l : list) {
-            result += arrayAsString(l);
+        while (iterator.hasNext()) {
+            int[] subset = iterator.next();
+            assertTrue(subsets.add(Arrays.toString(subset)));
+            assertEquals(1, Math.abs(subset.length - previousSubset.length));
+            assertEquals(iterator.isAdded(), Arrays.binarySearch(subset, iterator.getChangedId()) >= 0);
+            previousSubset = subset;
+        }
+        assertEquals(16, subsets.size());
 
-            if(i < list.size()-1) {
-                result += ", ";
-            }
+        int count = 0;
+        for (int[] subset : Subsets.ofSize(ids, 1, 2)) {
+            assertTrue(1 <= subset.length && subset.length <= 2);
+            count++;
+        }
+        assertEquals(4 + 6, count);
+        log.debug("{} Elements: {}", subsets.size(), subsets);
+    }
 
-            i++;
+    @Test
+    public void randomSubsetsContainOnlyGivenIds() {
+        // More ids than subsets can be enumerated of
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 2 * i + 1;
         }
 
-        return result + " }";
+        int count = 0;
+        long totalSize = 0;
+        for (int[] subset : Subsets.random(ids, 50, new Random(42))) {
+            for (int i = 0; i < subset.length; i++) {
+                assertTrue(Arrays.binarySearch(ids, subset[i]) >= 0);
+                // In the order of the given ids without duplicates
+                assertTrue(i == 0 || subset[i - 1] < subset[i]);
+            }
+            totalSize += subset.length;
+            count++;
+        }
+        assertEquals(50, count);
+
+        // Each id is contained with probability 1/2
+        double averageSize = (double) totalSize / count;
+        log.debug("Average size of the random subsets: {}", averageSize);
+        assertTrue(450 < averageSize && averageSize < 550);
+
+        assertFalse(Subsets.random(ids, 0, new Random(42)).iterator().hasNext());
     }
 
     private String arrayAsString(int[] l) {
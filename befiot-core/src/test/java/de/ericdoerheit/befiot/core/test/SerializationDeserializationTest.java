@@ -4,11 +4,16 @@ import de.ericdoerheit.befiot.core.*;
 import de.ericdoerheit.befiot.core.data.DecryptionKeyAgentData;
 import de.ericdoerheit.befiot.core.data.EncryptionKeyAgentData;
 import de.ericdoerheit.befiot.core.data.KeyAgentBuilderData;
+import it.unisa.dia.gas.jpbc.Element;
 import it.unisa.dia.gas.jpbc.Pairing;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 /**
@@ -40,6 +45,295 @@ public class SerializationDeserializationTest {
         assertEquals(decryptionKeyAgent, deserializedDecryptionKeyAgent);
     }
 
+    @Test
+    public void testPartitionedSerializationDeserialization() {
+        Pairing pairing = Util.getDefaultPairing();
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 9, 3);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(5);
+
+        KeyAgentBuilder deserializedKeyAgentBuilder = Deserializer.jsonStringToKeyAgentBuilder(
+                Serializer.keyAgentBuilderToJsonString(keyAgentBuilder));
+        EncryptionKeyAgent deserializedEncryptionKeyAgent = Deserializer.jsonStringToEncryptionKeyAgent(
+                Serializer.encryptionKeyAgentToJsonString(encryptionKeyAgent));
+        DecryptionKeyAgent deserializedDecryptionKeyAgent = Deserializer.jsonStringToDecryptionKeyAgent(
+                Serializer.decryptionKeyAgentToJsonString(decryptionKeyAgent));
+
+        assertEquals(keyAgentBuilder, deserializedKeyAgentBuilder);
+        assertEquals(encryptionKeyAgent, deserializedEncryptionKeyAgent);
+        assertEquals(3, deserializedEncryptionKeyAgent.getBlockSize());
+        assertEquals(3, deserializedDecryptionKeyAgent.getBlockSize());
+
+        int[] ids = new int[]{1, 5, 6, 9};
+        deserializedEncryptionKeyAgent.next(ids);
+        EncryptionHeader encryptionHeader = deserializedEncryptionKeyAgent.getHeader();
+        assertEquals(3, encryptionHeader.getC1Elems().size());
+
+        EncryptionHeader deserializedEncryptionHeader = Deserializer.jsonStringToEncryptionHeader(
+                Serializer.encryptionHeaderToJsonString(encryptionHeader));
+        assertEquals(encryptionHeader, deserializedEncryptionHeader);
+        assertArrayEquals(deserializedEncryptionKeyAgent.getKey().toBytes(),
+                deserializedDecryptionKeyAgent.getKey(deserializedEncryptionHeader, ids).toBytes());
+    }
+
+    @Test
+    public void testCompressedFormatSerializationDeserialization() {
+        Pairing pairing = Util.getDefaultPairing();
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 5);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(3);
+        int[] ids = new int[]{1, 3, 5};
+        encryptionKeyAgent.next(ids);
+        EncryptionHeader encryptionHeader = encryptionKeyAgent.getHeader();
+
+        int formatVersion = Serializer.getFormatVersion();
+        try {
+            Serializer.setFormatVersion(ElementEncoding.UNCOMPRESSED);
+            String uncompressedDecryptionKeyAgentJson = Serializer.decryptionKeyAgentToJsonString(decryptionKeyAgent);
+            String uncompressedEncryptionHeaderJson = Serializer.encryptionHeaderToJsonString(encryptionHeader);
+
+            Serializer.setFormatVersion(ElementEncoding.COMPRESSED);
+            String compressedDecryptionKeyAgentJson = Serializer.decryptionKeyAgentToJsonString(decryptionKeyAgent);
+            String compressedEncryptionHeaderJson = Serializer.encryptionHeaderToJsonString(encryptionHeader);
+
+            log.debug("DKA: {}B uncompressed, {}B compressed", uncompressedDecryptionKeyAgentJson.length(),
+                    compressedDecryptionKeyAgentJson.length());
+            assertTrue(compressedDecryptionKeyAgentJson.length() < uncompressedDecryptionKeyAgentJson.length());
+            assertTrue(compressedEncryptionHeaderJson.length() < uncompressedEncryptionHeaderJson.length());
+
+            DecryptionKeyAgent compressedDecryptionKeyAgent = Deserializer.jsonStringToDecryptionKeyAgent(compressedDecryptionKeyAgentJson);
+            assertEquals(decryptionKeyAgent, compressedDecryptionKeyAgent);
+            assertEquals(decryptionKeyAgent, Deserializer.jsonStringToDecryptionKeyAgent(uncompressedDecryptionKeyAgentJson));
+            assertEquals(encryptionHeader, Deserializer.jsonStringToEncryptionHeader(compressedEncryptionHeaderJson));
+            assertEquals(encryptionHeader, Deserializer.jsonStringToEncryptionHeader(uncompressedEncryptionHeaderJson));
+
+            // Includes the compressed zero element g_{n+1} of the public key
+            for (int i = 0; i < decryptionKeyAgent.getPublicKey().size(); i++) {
+                assertTrue(decryptionKeyAgent.getPublicKey().get(i).isEqual(compressedDecryptionKeyAgent.getPublicKey().get(i)));
+            }
+
+            // Equal public keys of different formats have equal hash codes
+            List<Element> uncompressedPublicKey = Deserializer.jsonStringToDecryptionKeyAgent(uncompressedDecryptionKeyAgentJson).getPublicKey();
+            assertEquals(uncompressedPublicKey, compressedDecryptionKeyAgent.getPublicKey());
+            assertEquals(uncompressedPublicKey.hashCode(), compressedDecryptionKeyAgent.getPublicKey().hashCode());
+
+            assertArrayEquals(encryptionKeyAgent.getKeyBytes(), compressedDecryptionKeyAgent.getKey(
+                    Deserializer.jsonStringToEncryptionHeader(compressedEncryptionHeaderJson), ids).toBytes());
+        } finally {
+            Serializer.setFormatVersion(formatVersion);
+        }
+    }
+
+    @Test
+    public void testDeserializedKeyAgentsSharePairing() {
+        Pairing pairing = Util.getDefaultPairing();
+        assertSame(pairing, PairingRegistry.getPairing(PairingRegistry.DEFAULT_PAIRING_IDENTIFIER));
+
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 5);
+        EncryptionKeyAgentData encryptionKeyAgentData = Serializer.encryptionKeyAgentToData(keyAgentBuilder.getEncryptionKeyAgent());
+        DecryptionKeyAgentData decryptionKeyAgentData = Serializer.decryptionKeyAgentToData(keyAgentBuilder.getDecryptionKeyAgent(2));
+        assertEquals(PairingRegistry.DEFAULT_PAIRING_IDENTIFIER, encryptionKeyAgentData.getPairingIdentifier());
+        assertEquals(PairingRegistry.DEFAULT_PAIRING_IDENTIFIER, decryptionKeyAgentData.getPairingIdentifier());
+
+        assertSame(pairing, Deserializer.encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData).getPairing());
+        assertSame(pairing, Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData).getPairing());
+    }
+
+    @Test
+    public void testTypeECurveSerializationDeserialization() {
+        Pairing pairing = PairingRegistry.getPairing(PairingRegistry.TYPE_E_PAIRING_IDENTIFIER);
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 3);
+
+        EncryptionKeyAgent encryptionKeyAgent = Deserializer.jsonStringToEncryptionKeyAgent(
+                Serializer.encryptionKeyAgentToJsonString(keyAgentBuilder.getEncryptionKeyAgent()));
+        DecryptionKeyAgent decryptionKeyAgent = Deserializer.jsonStringToDecryptionKeyAgent(
+                Serializer.decryptionKeyAgentToJsonString(keyAgentBuilder.getDecryptionKeyAgent(2)));
+        assertSame(pairing, encryptionKeyAgent.getPairing());
+        assertSame(pairing, decryptionKeyAgent.getPairing());
+
+        int[] ids = new int[]{1, 2};
+        encryptionKeyAgent.next(ids);
+        EncryptionHeader encryptionHeader = Deserializer.jsonStringToEncryptionHeader(
+                Serializer.encryptionHeaderToJsonString(encryptionKeyAgent.getHeader()));
+        assertArrayEquals(encryptionKeyAgent.getKeyBytes(), decryptionKeyAgent.getKey(encryptionHeader, ids).toBytes());
+
+        // A key agent of the default curve refuses the header
+        DecryptionKeyAgent defaultDecryptionKeyAgent = new KeyAgentBuilder(validNotBefore, validNotAfter,
+                Util.getDefaultPairing(), 3).getDecryptionKeyAgent(2);
+        try {
+            defaultDecryptionKeyAgent.getKey(encryptionHeader, ids);
+            fail("Header of another curve was accepted.");
+        } catch (IllegalArgumentException e) {
+            log.debug(e.getMessage());
+        }
+
+        // Keys of another curve are refused by the setters as well
+        DecryptionKeyAgent typeEDecryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(2);
+        try {
+            defaultDecryptionKeyAgent.setPrivateKey(typeEDecryptionKeyAgent.getPrivateKey());
+            fail("Private key of another curve was accepted.");
+        } catch (IllegalArgumentException e) {
+            log.debug(e.getMessage());
+        }
+        try {
+            defaultDecryptionKeyAgent.setPublicKey(typeEDecryptionKeyAgent.getPublicKey());
+            fail("Public key of another curve was accepted.");
+        } catch (IllegalArgumentException e) {
+            log.debug(e.getMessage());
+        }
+        try {
+            decryptionKeyAgent.setPublicKey(defaultDecryptionKeyAgent.getPublicKey());
+            fail("Public key of another curve was accepted.");
+        } catch (IllegalArgumentException e) {
+            log.debug(e.getMessage());
+        }
+        assertArrayEquals(encryptionKeyAgent.getKeyBytes(), decryptionKeyAgent.getKey(encryptionHeader, ids).toBytes());
+    }
+
+    @Test
+    public void testLazyPublicKeyDeserialization() {
+        Pairing pairing = Util.getDefaultPairing();
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 10);
+        EncryptionKeyAgent encryptionKeyAgent = keyAgentBuilder.getEncryptionKeyAgent();
+        DecryptionKeyAgentData decryptionKeyAgentData = Serializer.decryptionKeyAgentToData(keyAgentBuilder.getDecryptionKeyAgent(2));
+
+        DecryptionKeyAgent decryptionKeyAgent = Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData);
+        DecryptionKeyAgent compactDecryptionKeyAgent = Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData, 2);
+        LazyPublicKey publicKey = (LazyPublicKey) decryptionKeyAgent.getPublicKey();
+        LazyPublicKey compactPublicKey = (LazyPublicKey) compactDecryptionKeyAgent.getPublicKey();
+        assertEquals(0, publicKey.decodedElements());
+
+        int[] ids = new int[]{2, 5, 7};
+        encryptionKeyAgent.next(ids);
+        assertArrayEquals(encryptionKeyAgent.getKey().toBytes(), decryptionKeyAgent.getKey(encryptionKeyAgent.getHeader(), ids).toBytes());
+        assertArrayEquals(encryptionKeyAgent.getKey().toBytes(), compactDecryptionKeyAgent.getKey(encryptionKeyAgent.getHeader(), ids).toBytes());
+
+        assertTrue(publicKey.decodedElements() < publicKey.size());
+        assertTrue(compactPublicKey.decodedElements() <= 2);
+
+        // Serialization uses the serialized elements of the lazy public key
+        assertEquals(publicKey, Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(
+                Serializer.decryptionKeyAgentToData(decryptionKeyAgent)).getPublicKey());
+        assertEquals(keyAgentBuilder.getDecryptionKeyAgent(2), compactDecryptionKeyAgent);
+    }
+
+    @Test
+    public void testPublicKeyFileDeserialization() throws IOException {
+        Pairing pairing = Util.getDefaultPairing();
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 10);
+        EncryptionKeyAgentData encryptionKeyAgentData = Serializer.encryptionKeyAgentToData(keyAgentBuilder.getEncryptionKeyAgent());
+        DecryptionKeyAgentData decryptionKeyAgentData = Serializer.decryptionKeyAgentToData(keyAgentBuilder.getDecryptionKeyAgent(2));
+
+        File file = File.createTempFile("public-key", ".bin");
+        file.deleteOnExit();
+        PublicKeyFile.writeElementBytes(file, encryptionKeyAgentData.getPublicKey(),
+                encryptionKeyAgentData.getPairingIdentifier(), encryptionKeyAgentData.getFormatVersion());
+
+        PublicKeyFile publicKeyFile = PublicKeyFile.open(file);
+        assertSame(publicKeyFile, PublicKeyFile.open(file));
+        assertEquals(encryptionKeyAgentData.getPublicKey().size(), publicKeyFile.size());
+        assertTrue(publicKeyFile.matches(encryptionKeyAgentData.getPublicKey(),
+                encryptionKeyAgentData.getPairingIdentifier(), encryptionKeyAgentData.getFormatVersion()));
+        assertFalse(publicKeyFile.matches(encryptionKeyAgentData.getPublicKey().subList(0, publicKeyFile.size() - 1),
+                encryptionKeyAgentData.getPairingIdentifier(), encryptionKeyAgentData.getFormatVersion()));
+        assertFalse(publicKeyFile.matches(Serializer.encryptionKeyAgentToData(new KeyAgentBuilder(validNotBefore,
+                validNotAfter, pairing, 10).getEncryptionKeyAgent()).getPublicKey(),
+                encryptionKeyAgentData.getPairingIdentifier(), encryptionKeyAgentData.getFormatVersion()));
+
+        EncryptionKeyAgent encryptionKeyAgent = Deserializer.encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData, publicKeyFile);
+        DecryptionKeyAgent decryptionKeyAgent = Deserializer.decryptionKeyAgentFromDecryptionKeyAgentData(decryptionKeyAgentData, publicKeyFile);
+        assertSame(encryptionKeyAgent.getPublicKey(), decryptionKeyAgent.getPublicKey());
+        assertEquals(keyAgentBuilder.getDecryptionKeyAgent(2), decryptionKeyAgent);
+
+        int[] ids = new int[]{2, 5, 7};
+        encryptionKeyAgent.next(ids);
+        assertArrayEquals(encryptionKeyAgent.getKey().toBytes(), decryptionKeyAgent.getKey(encryptionKeyAgent.getHeader(), ids).toBytes());
+
+        // The zero element g_{n+1} does not enlarge the slots of a compressed public key
+        File compressedFile = File.createTempFile("public-key", ".bin");
+        compressedFile.deleteOnExit();
+        PublicKeyFile.write(compressedFile, keyAgentBuilder.getEncryptionKeyAgent().getPublicKey(),
+                encryptionKeyAgentData.getPairingIdentifier(), ElementEncoding.COMPRESSED);
+        PublicKeyFile compressedPublicKeyFile = PublicKeyFile.open(compressedFile);
+        assertEquals(2 + ElementEncoding.toBytes(pairing.getG1().newRandomElement(), ElementEncoding.COMPRESSED).length,
+                compressedPublicKeyFile.getSlotSize());
+        assertTrue(compressedPublicKeyFile.getPublicKey().get(11).isZero());
+        assertEquals(keyAgentBuilder.getEncryptionKeyAgent().getPublicKey(), compressedPublicKeyFile.getPublicKey());
+    }
+
+    @Test
+    public void testPrecomputedEElemDeserialization() {
+        Pairing pairing = Util.getDefaultPairing();
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 5);
+        DecryptionKeyAgent decryptionKeyAgent = keyAgentBuilder.getDecryptionKeyAgent(2);
+        EncryptionKeyAgentData encryptionKeyAgentData = Serializer.encryptionKeyAgentToData(keyAgentBuilder.getEncryptionKeyAgent());
+        assertNotNull(encryptionKeyAgentData.getE());
+
+        // Neither the pairing nor the fixed-base tables are computed when deserializing
+        long start = System.nanoTime();
+        EncryptionKeyAgent encryptionKeyAgent = Deserializer.encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData);
+        long deserializationTime = System.nanoTime() - start;
+        assertTrue(keyAgentBuilder.getEncryptionKeyAgent().getEElem().isEqual(encryptionKeyAgent.getEElem()));
+        assertFalse(encryptionKeyAgent.hasPowTables());
+
+        int[] ids = new int[]{1, 2, 4};
+        start = System.nanoTime();
+        encryptionKeyAgent.next(ids);
+        log.debug("Deserialization: {}us, first key with the verification and the tables: {}us",
+                deserializationTime / 1000, (System.nanoTime() - start) / 1000);
+        assertTrue(encryptionKeyAgent.hasPowTables());
+        assertArrayEquals(encryptionKeyAgent.getKey().toBytes(), decryptionKeyAgent.getKey(encryptionKeyAgent.getHeader(), ids).toBytes());
+
+        // A wrong e(g_n, g_1) is detected before it is used
+        encryptionKeyAgentData.setE(pairing.getGT().newRandomElement().toBytes());
+        EncryptionKeyAgent wrongEncryptionKeyAgent = Deserializer.encryptionKeyAgentFromEncryptionKeyAgentData(encryptionKeyAgentData);
+        try {
+            wrongEncryptionKeyAgent.next(ids);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testResumedPublicKeyFileGeneration() throws IOException {
+        Pairing pairing = Util.getDefaultPairing();
+        KeyAgentBuilder keyAgentBuilder = new KeyAgentBuilder(validNotBefore, validNotAfter, pairing, 10);
+
+        File directory = File.createTempFile("public-key", "");
+        directory.delete();
+
+        // Abort the generation after the second of six segments
+        PublicKeyFileGenerator publicKeyFileGenerator = new PublicKeyFileGenerator(pairing, directory, 4);
+        publicKeyFileGenerator.setProgressListener(new PublicKeyFileGenerator.ProgressListener() {
+            @Override
+            public void progress(long elements, long totalElements, double elementsPerSecond) {
+                if (elements == 8) {
+                    throw new IllegalStateException("Aborted");
+                }
+            }
+        });
+        try {
+            publicKeyFileGenerator.generate(keyAgentBuilder.getgElem(), keyAgentBuilder.getaElem(), 10);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Aborted", e.getMessage());
+        }
+
+        publicKeyFileGenerator.setProgressListener(null);
+        PublicKeyFile publicKeyFile = publicKeyFileGenerator.generate(keyAgentBuilder.getgElem(), keyAgentBuilder.getaElem(), 10);
+        assertEquals(21, publicKeyFile.size());
+
+        KeyAgentBuilder fileKeyAgentBuilder = Deserializer.keyAgentBuilderFromKeyAgentBuilderData(
+                Serializer.keyAgentBuilderToData(keyAgentBuilder), publicKeyFile);
+        assertEquals(keyAgentBuilder.getEncryptionKeyAgent().getPublicKey(), fileKeyAgentBuilder.getEncryptionKeyAgent().getPublicKey());
+        assertEquals(keyAgentBuilder.getDecryptionKeyAgent(3), fileKeyAgentBuilder.getDecryptionKeyAgent(3));
+
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+        directory.deleteOnExit();
+    }
+
     @Test
     public void testJsonSerializationDeserialization() {
         Pairing pairing = Util.getDefaultPairing();
@@ -1,9 +1,17 @@
 package de.ericdoerheit.befiot.server;
 
 import de.ericdoerheit.befiot.core.Deserializer;
+import de.ericdoerheit.befiot.core.ElementEncoding;
 import de.ericdoerheit.befiot.core.KeyAgentBuilder;
+import de.ericdoerheit.befiot.core.PairingBackends;
+import de.ericdoerheit.befiot.core.PairingRegistry;
+import de.ericdoerheit.befiot.core.PublicKeyFile;
+import de.ericdoerheit.befiot.core.PublicKeyFileGenerator;
 import de.ericdoerheit.befiot.core.Serializer;
 import de.ericdoerheit.befiot.core.Util;
+import de.ericdoerheit.befiot.core.data.KeyAgentBuilderData;
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Pairing;
 import okhttp3.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +21,7 @@ import redis.clients.jedis.JedisPoolConfig;
 import spark.Spark;
 
 import javax.net.ssl.SSLContext;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.KeyStoreException;
@@ -33,6 +42,8 @@ public class TenantServer {
 
     public static final String DECRYPTION_KEY_AGENT_URL = "/decryption-key-agent";
     public static final String REGISTRY_ENCRYPTION_KEY_AGENT_URL = "/encryption-key-agent";
+    public static final String ROTATE_MASTER_SECRET_URL = "/rotate-master-secret";
+    public static final String TENANT_TOKEN_HEADER = "Tenant-Token";
 
     private String tenantToken;
 
@@ -60,6 +71,14 @@ public class TenantServer {
     private KeyAgentBuilder keyAgentBuilder;
     private Integer maximumNumberOfThings;
     private Long keyAgentBuilderLifetime;
+    // Ids per block of the partitioned scheme, 0 for the basic scheme
+    private int blockSize;
+    // Curve of new key agent builders (see PairingRegistry)
+    private int pairingIdentifier;
+
+    // Optional directory of the generated public key, the public key is generated out-of-core if set
+    private String keyAgentBuilderLocation;
+    private int publicKeySegmentSize;
 
     private TimerTask uploadTask;
     Timer timer;
@@ -87,6 +106,24 @@ public class TenantServer {
 
         maximumNumberOfThings = Integer.valueOf(properties.getProperty("maximum-number-of-things"));
         keyAgentBuilderLifetime = Long.valueOf(properties.getProperty("key-agent-builder-lifetime"));
+        blockSize = Integer.valueOf(properties.getProperty("block-size", "0"));
+        pairingIdentifier = Integer.valueOf(properties.getProperty("pairing-identifier",
+                String.valueOf(PairingRegistry.DEFAULT_PAIRING_IDENTIFIER)));
+        keyAgentBuilderLocation = properties.getProperty("key-agent-builder-location");
+        publicKeySegmentSize = Integer.valueOf(properties.getProperty("public-key-segment-size",
+                String.valueOf(PublicKeyFileGenerator.DEFAULT_SEGMENT_SIZE)));
+
+        // Optional pairing backend (jpbc, pbc or auto for a calibration), PBC when possible otherwise
+        String pairingBackend = properties.getProperty("pairing-backend");
+        try {
+            if (PairingBackends.AUTO.equals(pairingBackend)) {
+                PairingBackends.calibrate();
+            } else if (pairingBackend != null) {
+                PairingBackends.select(pairingBackend);
+            }
+        } catch (IllegalStateException e) {
+            log.error("Pairing backend {} could not be selected: {}", pairingBackend, e.getMessage());
+        }
 
         Object[] mandatoryProperties = new Object[]{tenantServerHost, tenantServerPort, tenantRegistryHost, tenantRegistryPort,
                 keyStoreLocation, keyStorePassword, keyPassword, trustStoreLocation, trustStorePassword, maximumNumberOfThings,
@@ -109,6 +146,10 @@ public class TenantServer {
     public void start() {
         logEvent("{\"event\": \"server_started\", \"data\":\""+Util.tenantId(tenantServerHost, tenantServerPort)+"\"}");
 
+        PairingBackends.Measurement pairingBackendMeasurement = PairingBackends.getActiveMeasurement();
+        logEvent("{\"event\": \"pairing_backend\", \"data\":\""+PairingBackends.getActiveBackend().getName()+"\""
+                + (pairingBackendMeasurement != null ? ", \"measurement\": "+pairingBackendMeasurement : "")+"}");
+
         log.info("Start tenant");
 
         SSLContext sslContext = null;
@@ -161,6 +202,20 @@ public class TenantServer {
                 return decryptionKeyAgentString;
             });
 
+            Spark.post(ROTATE_MASTER_SECRET_URL, (req, res) -> {
+                log.debug("Request from {} to {}", req.host(), req.url());
+                if (tenantToken == null || !tenantToken.equals(req.headers(TENANT_TOKEN_HEADER))) {
+                    res.status(403);
+                    return "forbidden";
+                }
+
+                if (!rotateMasterSecret()) {
+                    res.status(500);
+                    return "master secret could not be rotated";
+                }
+                return "rotated";
+            });
+
             Spark.get("/status", (req, res) -> {
                 return "running";
             });
@@ -173,6 +228,10 @@ public class TenantServer {
     }
 
     public boolean initializeKeyAgentBuilder() {
+        if (keyAgentBuilderLocation != null && blockSize == 0) {
+            return initializeKeyAgentBuilderFromPublicKeyFile();
+        }
+
         String keyAgentBuilderJsonString;
 
         try (Jedis jedis = jedisPool.getResource()) {
@@ -188,8 +247,13 @@ public class TenantServer {
         } else {
             // Create new random Key Agent Builder
             long timestamp = System.currentTimeMillis();
-            keyAgentBuilder = new KeyAgentBuilder(timestamp, timestamp+keyAgentBuilderLifetime,
-                    Util.getDefaultPairing(), maximumNumberOfThings);
+            if (blockSize > 0) {
+                keyAgentBuilder = new KeyAgentBuilder(timestamp, timestamp+keyAgentBuilderLifetime,
+                        PairingRegistry.getPairing(pairingIdentifier), maximumNumberOfThings, blockSize);
+            } else {
+                keyAgentBuilder = new KeyAgentBuilder(timestamp, timestamp+keyAgentBuilderLifetime,
+                        PairingRegistry.getPairing(pairingIdentifier), maximumNumberOfThings);
+            }
 
             // Serialize and store new Key Agent Builder
             keyAgentBuilderJsonString = Serializer.keyAgentBuilderToJsonString(keyAgentBuilder);
@@ -203,6 +267,94 @@ public class TenantServer {
         }
     }
 
+    /**
+     * Initializes the key agent builder with a public key which is generated into a public key file in the key agent
+     * builder location instead of the heap. The parameters of a new key agent builder are stored before the
+     * generation starts, so that a restarted server resumes the generation of the same public key.
+     * @return True if the key agent builder was initialized
+     */
+    private boolean initializeKeyAgentBuilderFromPublicKeyFile() {
+        String keyAgentBuilderJsonString;
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            keyAgentBuilderJsonString = jedis.get(dbPrefix()+KEY_AGENT_BUILDER_KEY);
+        }
+
+        KeyAgentBuilderData keyAgentBuilderData;
+        Pairing pairing;
+
+        if (keyAgentBuilderJsonString != null) {
+            keyAgentBuilderData = Deserializer.jsonStringToKeyAgentBuilderData(keyAgentBuilderJsonString);
+            pairing = PairingRegistry.getPairing(keyAgentBuilderData.getPairingIdentifier());
+        } else {
+            // Create and store the parameters of a new random Key Agent Builder
+            long timestamp = System.currentTimeMillis();
+            pairing = PairingRegistry.getPairing(pairingIdentifier);
+
+            keyAgentBuilderData = new KeyAgentBuilderData();
+            keyAgentBuilderData.setPairingIdentifier(pairingIdentifier);
+            keyAgentBuilderData.setFormatVersion(Serializer.getFormatVersion());
+            keyAgentBuilderData.setValidNotBefore(timestamp);
+            keyAgentBuilderData.setValidNotAfter(timestamp+keyAgentBuilderLifetime);
+            keyAgentBuilderData.setMaximumNumberOfDecryptionKeyAgents(maximumNumberOfThings);
+            keyAgentBuilderData.setA(pairing.getZr().newRandomElement().toBytes());
+            keyAgentBuilderData.setG(ElementEncoding.toBytes(pairing.getG1().newRandomElement(),
+                    Serializer.getFormatVersion()));
+            keyAgentBuilderData.setMsk(pairing.getZr().newRandomElement().toBytes());
+
+            try (Jedis jedis = jedisPool.getResource()) {
+                jedis.set(dbPrefix()+KEY_AGENT_BUILDER_KEY, Serializer.keyAgentBuilderDataToJsonString(keyAgentBuilderData));
+            } catch (Exception e) {
+                log.error(e.getMessage());
+                return false;
+            }
+        }
+
+        Element aElem = pairing.getZr().newElementFromBytes(keyAgentBuilderData.getA());
+        Element gElem = ElementEncoding.fromBytes(pairing.getG1(), keyAgentBuilderData.getG(),
+                keyAgentBuilderData.getFormatVersion());
+
+        long start = System.currentTimeMillis();
+        try {
+            PublicKeyFileGenerator publicKeyFileGenerator = new PublicKeyFileGenerator(pairing,
+                    new File(keyAgentBuilderLocation), publicKeySegmentSize);
+            PublicKeyFile publicKeyFile = publicKeyFileGenerator.generate(gElem, aElem,
+                    keyAgentBuilderData.getMaximumNumberOfDecryptionKeyAgents());
+            keyAgentBuilder = Deserializer.keyAgentBuilderFromKeyAgentBuilderData(keyAgentBuilderData, publicKeyFile);
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            log.error("Public key file could not be generated: {}", e.getMessage());
+            return false;
+        }
+
+        logEvent("{\"event\": \"public_key_file_generated\", \"data\":\""+Util.tenantId(tenantServerHost, tenantServerPort)+"\", "
+                + "\"duration\": "+(System.currentTimeMillis()-start)+"}");
+
+        return true;
+    }
+
+    /**
+     * Rotates the master secret of the key agent builder and starts a new validity period. The public key sequence
+     * g_i is kept, so only the encryption key agent is recreated, stored and uploaded to the registry. Things have to
+     * fetch a new decryption key agent afterwards.
+     * @return True if the rotated key agent builder was stored and the encryption key agent was uploaded
+     */
+    public synchronized boolean rotateMasterSecret() {
+        long timestamp = System.currentTimeMillis();
+        keyAgentBuilder.rotateMasterSecret(timestamp, timestamp+keyAgentBuilderLifetime);
+        logEvent("{\"event\": \"master_secret_rotated\", \"data\":\""+Util.tenantId(tenantServerHost, tenantServerPort)+"\", "
+                + "\"duration\": "+(System.currentTimeMillis()-timestamp)+"}");
+
+        String keyAgentBuilderJsonString = Serializer.keyAgentBuilderToJsonString(keyAgentBuilder);
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.set(dbPrefix()+KEY_AGENT_BUILDER_KEY, keyAgentBuilderJsonString);
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            return false;
+        }
+
+        return uploadEncryptionKeyAgentToRegistry();
+    }
+
     public boolean uploadEncryptionKeyAgentToRegistry() {
         String registryEkaUrl = "https://" + tenantRegistryHost + ":" + tenantRegistryPort + REGISTRY_ENCRYPTION_KEY_AGENT_URL
                 + "/" + Util.tenantId(tenantServerHost, tenantServerPort);
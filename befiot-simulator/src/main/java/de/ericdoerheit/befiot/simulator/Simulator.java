@@ -3,6 +3,7 @@ package de.ericdoerheit.befiot.simulator;
 import de.ericdoerheit.befiot.client.IProtectionClient;
 import de.ericdoerheit.befiot.client.Message;
 import de.ericdoerheit.befiot.client.ProtectionClient;
+import de.ericdoerheit.befiot.core.Subsets;
 import de.ericdoerheit.befiot.core.Util;
 import de.ericdoerheit.befiot.registry.Registry;
 import de.ericdoerheit.befiot.server.TenantServer;
@@ -369,11 +370,21 @@ public class Simulator {
         IProtectionClient senderClient = tenantProtectionClientMap.get(ownTenantId).get(thingId);
 
         if (senderClient != null) {
-            Set<Set<String>> allReceiverSets = powerSet(completeReceiverSet());
+            List<String> completeReceivers = new ArrayList<>(completeReceiverSet());
 
-            log.info("{}", allReceiverSets);
+            log.info("Send messages to all {} receiver sets of {}", 1L << completeReceivers.size(), completeReceivers);
 
-            for (Set<String> receivers : allReceiverSets) {
+            // Receiver sets are enumerated lazily by the positions of the receivers
+            int[] positions = new int[completeReceivers.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i;
+            }
+
+            for (int[] subset : Subsets.grayCode(positions)) {
+                Set<String> receivers = new HashSet<>();
+                for (int position : subset) {
+                    receivers.add(completeReceivers.get(position));
+                }
                 sendSingleMessage(senderClient, receivers);
             }
         } else {
@@ -393,9 +404,7 @@ public class Simulator {
                 i++;
             }
 
-            List<int[]> powerset = Util.powerset(totalReceiverSet);
-
-            for (int[] subset : powerset) {
+            for (int[] subset : Subsets.grayCode(totalReceiverSet)) {
                 senderClient.nextEncryption(tenantId, subset);
                 String encryptionHeader = senderClient.encryptionHeader(tenantId);
                 byte[] encryptionKey = senderClient.encryptionKeyBytes(tenantId);
@@ -629,27 +638,6 @@ public class Simulator {
         return null;
     }
 
-    /*
-    Source: http://stackoverflow.com/questions/17891527/optimal-way-to-obtain-get-powerset-of-a-list-recursively
-     */
-    public static <T> Set<Set<T>> powerSet(Set<T> originalSet) {
-        Set<Set<T>> sets = new HashSet<Set<T>>();
-        if (originalSet.isEmpty()) {
-            sets.add(new HashSet<T>());
-            return sets;
-        }
-        List<T> list = new ArrayList<T>(originalSet);
-        T head = list.get(0);
-        Set<T> rest = new HashSet<T>(list.subList(1, list.size()));
-        for (Set<T> set : powerSet(rest)) {
-            Set<T> newSet = new HashSet<T>();
-            newSet.add(head);
-            newSet.addAll(set);
-            sets.add(newSet);
-            sets.add(set);
-        }
-        return sets;
-    }
     public static void main(String[] args) {
         Simulator simulator = new Simulator();
 